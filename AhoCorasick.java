@@ -0,0 +1,110 @@
+import java.util.*;
+
+/**
+ * AhoCorasick.java
+ *
+ * finds every one of a set of literal strings in a single pass over a line. the trie with its
+ * failure links is compiled into a dense table indexed by node and character class, so each
+ * character costs one lookup however many literals there are.
+ */
+public class AhoCorasick {
+    // character classes: 0 for characters that appear in no literal
+    private final char[] classOf = new char[Character.MAX_VALUE + 1];
+    private final int classes;
+    // delta[node * classes + class] is the next node
+    private final int[] delta;
+    // pattern numbers of the literals ending at each node (including via failure links), or null
+    private final int[][] output;
+
+    public AhoCorasick(List<String> words, List<Integer> patterns) {
+        int count = 1;
+        for (String w : words) {
+            for (int i = 0; i < w.length(); i++) {
+                if (classOf[w.charAt(i)] == 0) classOf[w.charAt(i)] = (char) count++;
+            }
+        }
+        classes = count;
+
+        // build the trie, -1 marks a missing edge
+        int capacity = 1;
+        for (String w : words) capacity += w.length();
+        int[] trie = new int[capacity * classes];
+        Arrays.fill(trie, -1);
+        List<List<Integer>> ends = new ArrayList<>();
+        ends.add(null);
+        int nodes = 1;
+        for (int k = 0; k < words.size(); k++) {
+            String w = words.get(k);
+            int node = 0;
+            for (int i = 0; i < w.length(); i++) {
+                int slot = node * classes + classOf[w.charAt(i)];
+                if (trie[slot] == -1) {
+                    trie[slot] = nodes++;
+                    ends.add(null);
+                }
+                node = trie[slot];
+            }
+            if (ends.get(node) == null) ends.set(node, new ArrayList<>());
+            ends.get(node).add(patterns.get(k));
+        }
+
+        // breadth-first over the trie: fill in failure transitions and merge outputs
+        delta = Arrays.copyOf(trie, nodes * classes);
+        output = new int[nodes][];
+        int[] fail = new int[nodes];
+        int[] queue = new int[nodes];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < classes; c++) {
+            int child = delta[c];
+            if (child == -1) {
+                delta[c] = 0;
+            } else {
+                fail[child] = 0;
+                queue[tail++] = child;
+            }
+        }
+        output[0] = toArray(ends.get(0), null);
+        while (head < tail) {
+            int node = queue[head++];
+            output[node] = toArray(ends.get(node), output[fail[node]]);
+            for (int c = 0; c < classes; c++) {
+                int child = delta[node * classes + c];
+                int viaFail = delta[fail[node] * classes + c];
+                if (child == -1) {
+                    delta[node * classes + c] = viaFail;
+                } else {
+                    fail[child] = viaFail;
+                    queue[tail++] = child;
+                }
+            }
+        }
+    }
+
+    // record the pattern number of every literal occurring in line[from..]
+    public void collect(CharSequence line, int from, BitSet found) {
+        int node = 0;
+        for (int i = from; i < line.length(); i++) {
+            node = delta[node * classes + classOf[line.charAt(i)]];
+            int[] out = output[node];
+            if (out != null) {
+                for (int p : out) found.set(p);
+            }
+        }
+    }
+
+    // own pattern numbers followed by the ones inherited through the failure link
+    private static int[] toArray(List<Integer> own, int[] inherited) {
+        int n = (own == null ? 0 : own.size()) + (inherited == null ? 0 : inherited.length);
+        if (n == 0) return null;
+        int[] out = new int[n];
+        int i = 0;
+        if (own != null) {
+            for (int p : own) out[i++] = p;
+        }
+        if (inherited != null) {
+            for (int p : inherited) out[i++] = p;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.Arrays;
+
+/**
+ * BitParallel.java
+ *
+ * bit-parallel simulation for small FSMs. the character-consuming states are the positions
+ * of a Glushkov automaton: the set of active positions fits in one long, the positions each
+ * one can move to (following any epsilon transitions) are precomputed, and each character
+ * costs a handful of table lookups, ORs and one AND, with no walking of branch states.
+ */
+public class BitParallel implements Engine {
+    // positions that fit in the active-state word
+    static final int MAX_POSITIONS = 64;
+    // positions handled per follow-table lookup
+    private static final int CHUNK = 8;
+
+    private final char[] classOf;
+    // positions that can consume a character of each class
+    private final long[] classMask;
+    // positions entered from the start state, which is re-entered at every character
+    private final long first;
+    // positions that reach an accept state after consuming their character
+    private final long last;
+    // true if the start state reaches an accept state, so every line matches
+    private final boolean matchesEmpty;
+    // follow[chunk << CHUNK | bits]: positions reachable next from that chunk's active positions
+    private final long[] follow;
+    private final int chunks;
+
+    // scratch space for computing closures while building
+    private final FSM fsm;
+    private final int[] position;
+    private final int[] stack;
+    private final boolean[] seen;
+    // set by closure() when an accepting state is reached
+    private boolean acceptSeen;
+
+    public BitParallel(FSM fsm) {
+        int n = fsm.size;
+        this.fsm = fsm;
+        position = new int[n];
+        stack = new int[n];
+        seen = new boolean[n];
+        int count = 0;
+        for (int s = 0; s < n; s++) {
+            position[s] = isPosition(fsm, s) ? count++ : -1;
+        }
+        if (count > MAX_POSITIONS) throw new IllegalArgumentException("too many states for a bit-parallel engine: " + count);
+
+        classOf = fsm.classOf;
+        classMask = new long[fsm.classCount];
+        for (int s = 0; s < n; s++) {
+            if (position[s] < 0) continue;
+            long bit = 1L << position[s];
+            if (fsm.isWildcard[s]) {
+                for (int c = 0; c < classMask.length; c++) classMask[c] |= bit;
+            } else {
+                classMask[fsm.classOf[fsm.ch[s]]] |= bit;
+            }
+        }
+
+        // the positions and accept states in the epsilon closure of each state that can be entered
+        long[] reach = new long[count];
+        long lastMask = 0;
+        for (int s = 0; s < n; s++) {
+            if (position[s] < 0) continue;
+            reach[position[s]] = closure(fsm.next1[s]);
+            if (acceptSeen) lastMask |= 1L << position[s];
+        }
+        first = closure(0);
+        matchesEmpty = acceptSeen;
+        last = lastMask;
+
+        chunks = (count + CHUNK - 1) / CHUNK;
+        follow = new long[chunks << CHUNK];
+        for (int k = 0; k < chunks; k++) {
+            for (int bits = 1; bits < 1 << CHUNK; bits++) {
+                // build each entry from the one without its lowest bit
+                int low = Integer.numberOfTrailingZeros(bits);
+                int p = k * CHUNK + low;
+                long add = p < count ? reach[p] : 0;
+                follow[k << CHUNK | bits] = follow[k << CHUNK | (bits & (bits - 1))] | add;
+            }
+        }
+    }
+
+    // return true if the FSM is small enough for this engine
+    static boolean fits(FSM fsm) {
+        int count = 0;
+        for (int s = 0; s < fsm.size; s++) {
+            if (isPosition(fsm, s)) count++;
+        }
+        return count <= MAX_POSITIONS;
+    }
+
+    // states that consume a character
+    private static boolean isPosition(FSM fsm, int s) {
+        return !fsm.isAccept(s) && !fsm.isBranch(s);
+    }
+
+    // positions reachable from s by epsilon transitions, setting acceptSeen if an accept state is
+    private long closure(int s) {
+        acceptSeen = false;
+        if (s == -1) return 0;
+        Arrays.fill(seen, false);
+        long mask = 0;
+        int top = 0;
+        stack[top++] = s;
+        seen[s] = true;
+        while (top > 0) {
+            int state = stack[--top];
+            if (fsm.isAccept(state)) {
+                acceptSeen = true;
+            } else if (position[state] >= 0) {
+                mask |= 1L << position[state];
+            } else {
+                int n1 = fsm.next1[state];
+                int n2 = fsm.next2[state];
+                if (n1 != -1 && !seen[n1]) {
+                    seen[n1] = true;
+                    stack[top++] = n1;
+                }
+                if (n2 != -1 && !seen[n2]) {
+                    seen[n2] = true;
+                    stack[top++] = n2;
+                }
+            }
+        }
+        return mask;
+    }
+
+    @Override
+    public boolean search(CharSequence line, int from) {
+        if (matchesEmpty) return true;
+        final long[] follow = this.follow;
+        long active = 0;
+        for (int i = from; i < line.length(); i++) {
+            long next = first;
+            if (active != 0) {
+                for (int k = 0; k < chunks; k++) {
+                    next |= follow[k << CHUNK | (int) (active >>> (k * CHUNK)) & 0xFF];
+                }
+            }
+            active = next & classMask[classOf[line.charAt(i)]];
+            if ((active & last) != 0) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,45 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ByteLine.java
+ *
+ * reusable CharSequence view of one line inside a byte buffer, so the engines can run
+ * straight over file bytes without decoding them. each byte is one character (ASCII).
+ */
+final class ByteLine implements CharSequence {
+    private ByteBuffer buf;
+    private int start;
+    private int length;
+
+    // point the view at buf[start, end)
+    void set(ByteBuffer buf, int start, int end) {
+        this.buf = buf;
+        this.start = start;
+        this.length = end - start;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buf.get(start + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        ByteLine view = new ByteLine();
+        view.set(buf, start + from, start + to);
+        return view;
+    }
+
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length];
+        buf.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
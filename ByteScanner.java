@@ -0,0 +1,293 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * ByteScanner.java
+ *
+ * byte-oriented search: the file is memory mapped in chunks, line boundaries are found in
+ * place and the engine runs directly over the bytes. only matching lines are copied, straight
+ * from the input into a reusable output buffer that grows up to OUTPUT_SIZE, so nothing is
+ * decoded or allocated for lines that don't match, and the output is written in large blocks.
+ * a scanner can also just count matching lines, and stop once it has found enough of them.
+ * when a match can only start with certain bytes, the lines up to the next of them are passed
+ * over in one go (see StartBytes) and the engine only sees lines that have one.
+ */
+public class ByteScanner implements SearchStats.Source {
+    // size of each mapping; chunks end on a line boundary so the next one starts on a fresh line
+    private static final int CHUNK = 1 << 30;
+    // the output buffer starts small, for searches with few matches, and doubles up to OUTPUT_SIZE
+    private static final int OUTPUT_START = 1 << 13;
+    private static final int OUTPUT_SIZE = 1 << 20;
+    // initial read buffer for streams, doubled when a line doesn't fit
+    private static final int READ_SIZE = 1 << 16;
+    // longest a match read from a busy stream waits in the output buffer
+    static final long FLUSH_INTERVAL = 200_000_000L;
+
+    private final Engine engine;
+    private final Prefilter prefilter;
+    // finds the next byte a match can start with, or null
+    private final StartBytes.Finder finder;
+    private final ByteLine line = new ByteLine();
+    private final OutputStream out;
+    private byte[] outBuf = new byte[OUTPUT_START];
+    private int outLen;
+    // number of matching lines so far, and how many to stop at
+    private long matched;
+    private long maxMatches = Long.MAX_VALUE;
+    // write the matching lines, or only count them
+    private boolean printLines = true;
+    // text scanned so far, and lines the prefilter looked at or rejected
+    private long bytes;
+    private long lines;
+    private long prefiltered;
+    private long rejected;
+    // written before each matching line, e.g. the file name
+    private byte[] label = new byte[0];
+
+    public ByteScanner(Engine engine, Prefilter prefilter, OutputStream out) {
+        this.engine = engine;
+        this.prefilter = prefilter;
+        this.finder = prefilter == null || prefilter.startBytes() == null ? null : prefilter.startBytes().finder();
+        this.out = out;
+    }
+
+    // set the text written before each matching line
+    public void setLabel(String label) {
+        this.label = label.getBytes();
+    }
+
+    // stop searching once this many lines have matched
+    public void setMaxMatches(long max) {
+        this.maxMatches = max;
+    }
+
+    // write the matching lines, or only count them
+    public void setPrintLines(boolean print) {
+        this.printLines = print;
+    }
+
+    // return true once as many lines have matched as were wanted
+    public boolean done() {
+        return matched >= maxMatches;
+    }
+
+    // search a whole file, mapping it one chunk at a time so files over 2 GB work
+    public void scanFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long pos = 0;
+            int chunk = CHUNK;
+            while (pos < size && !done()) {
+                int length = (int) Math.min(chunk, size - pos);
+                boolean last = pos + length == size;
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+                int done = scan(buf, 0, length, last);
+                if (done == 0 && !last) {
+                    // a single line longer than the chunk, map more of it at once
+                    if (chunk == Integer.MAX_VALUE) throw new IOException("line longer than 2 GB at byte " + pos);
+                    chunk = Integer.MAX_VALUE;
+                    continue;
+                }
+                pos += done;
+                chunk = CHUNK;
+            }
+        }
+        flush();
+    }
+
+    // search only the given byte ranges of a file, as start and end pairs that fall on line
+    // boundaries, e.g. the blocks a trigram index couldn't rule out
+    public void scanRanges(Path path, long[] ranges) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                long pos = ranges[i];
+                while (pos < ranges[i + 1] && !done()) {
+                    int length = (int) Math.min(CHUNK, ranges[i + 1] - pos);
+                    boolean last = pos + length == ranges[i + 1];
+                    MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+                    int done = scan(buf, 0, length, last);
+                    if (done == 0 && !last) throw new IOException("line longer than 1 GB at byte " + pos);
+                    pos += done;
+                }
+            }
+        }
+        flush();
+    }
+
+    // search everything read from a stream, carrying any partial line over to the next read.
+    // matches are written in batches: before waiting on an idle stream, and at least every
+    // FLUSH_INTERVAL while it keeps delivering, so a live pipe or followed file sees them promptly
+    public void scanStream(InputStream in) throws IOException {
+        byte[] buf = new byte[READ_SIZE];
+        int len = 0;
+        long lastFlush = System.nanoTime();
+        while (!done()) {
+            if (outLen > 0 && (in.available() == 0 || System.nanoTime() - lastFlush >= FLUSH_INTERVAL)) {
+                flush();
+                lastFlush = System.nanoTime();
+            }
+            int n = in.read(buf, len, buf.length - len);
+            if (n == -1) break;
+            len += n;
+            int done = scan(ByteBuffer.wrap(buf), 0, len, false);
+            if (done > 0) {
+                System.arraycopy(buf, done, buf, 0, len - done);
+                len -= done;
+            } else if (len == buf.length) {
+                // a single line filling the buffer, make room for more of it
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+        }
+        if (!done()) scan(ByteBuffer.wrap(buf), 0, len, true);
+        flush();
+    }
+
+    // number of matching lines found so far
+    public long matched() {
+        return matched;
+    }
+
+    @Override
+    public void addStats(SearchStats stats) {
+        stats.addScan(bytes, lines, matched, prefiltered, rejected);
+    }
+
+    // search the lines in buf[from, to) and return the position after the last one searched.
+    // a trailing line without a newline is only searched when last is true. stops early, after
+    // the line that makes it done
+    int scan(ByteBuffer buf, int from, int to, boolean last) throws IOException {
+        if (done()) return from;
+        int start = from;
+        while (start < to) {
+            // where the engine can start in this line
+            int first = start;
+            if (finder != null) {
+                // pass over the lines with no byte a match could start with, rejecting them unsearched
+                long before = finder.newlines();
+                int hit = finder.find(buf, start, to);
+                long passed = finder.newlines() - before;
+                if (passed > 0) {
+                    lines += passed;
+                    prefiltered += passed;
+                    rejected += passed;
+                    start = lastIndexOf(buf, (byte) '\n', start, hit < 0 ? to : hit) + 1;
+                }
+                if (hit < 0) {
+                    // at most part of a line is left, and it can't match
+                    if (start == to) break;
+                    if (!last) {
+                        bytes += start - from;
+                        return start;
+                    }
+                    lines++;
+                    prefiltered++;
+                    rejected++;
+                    break;
+                }
+                first = hit;
+            }
+            int newline = indexOf(buf, (byte) '\n', first, to);
+            if (newline < 0) {
+                if (!last) {
+                    bytes += start - from;
+                    return start;
+                }
+                newline = to;
+            }
+            lines++;
+            // treat \r\n like \n
+            int end = newline;
+            if (end > start && buf.get(end - 1) == '\r') end--;
+
+            line.set(buf, start, end);
+            int pos = 0;
+            if (prefilter != null) {
+                prefiltered++;
+                pos = prefilter.candidate(line, first - start);
+                if (pos < 0) rejected++;
+            }
+            if (pos >= 0 && engine.search(line, pos)) {
+                matched++;
+                if (printLines) emit(buf, start, end);
+                if (done()) {
+                    // nothing after this line is wanted
+                    int stop = Math.min(newline + 1, to);
+                    bytes += stop - from;
+                    return stop;
+                }
+            }
+            start = newline + 1;
+        }
+        bytes += to - from;
+        return to;
+    }
+
+    // first position of b in buf[from, to), or -1
+    private static int indexOf(ByteBuffer buf, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    // last position of b in buf[from, to), or from - 1
+    private static int lastIndexOf(ByteBuffer buf, byte b, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buf.get(i) == b) return i;
+        }
+        return from - 1;
+    }
+
+    // copy the label, a matching line and a newline into the output buffer
+    private void emit(ByteBuffer buf, int start, int end) throws IOException {
+        append(label);
+        // with several patterns, say which ones matched
+        if (engine instanceof PatternSet.Matcher) {
+            append((((PatternSet.Matcher) engine).matched() + ":").getBytes());
+        }
+        while (start < end) {
+            room(1);
+            int n = Math.min(end - start, outBuf.length - outLen);
+            buf.get(start, outBuf, outLen, n);
+            outLen += n;
+            start += n;
+        }
+        room(1);
+        outBuf[outLen++] = '\n';
+    }
+
+    // copy bytes into the output buffer
+    private void append(byte[] bytes) throws IOException {
+        if (bytes.length == 0) return;
+        room(bytes.length);
+        if (bytes.length > outBuf.length) {
+            out.write(bytes);
+        } else {
+            System.arraycopy(bytes, 0, outBuf, outLen, bytes.length);
+            outLen += bytes.length;
+        }
+    }
+
+    // make room for n more bytes if the buffer can hold them: grow it while it is under
+    // OUTPUT_SIZE, and once it is that big, write it out
+    private void room(int n) throws IOException {
+        while (outLen + n > outBuf.length && outBuf.length < OUTPUT_SIZE) {
+            outBuf = Arrays.copyOf(outBuf, outBuf.length * 2);
+        }
+        if (outLen + n > outBuf.length) {
+            out.write(outBuf, 0, outLen);
+            outLen = 0;
+        }
+    }
+
+    // write out any buffered matches
+    public void flush() throws IOException {
+        out.write(outBuf, 0, outLen);
+        outLen = 0;
+        out.flush();
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Codec.java
+ *
+ * a compressed format REsearch can read directly, recognised by the magic bytes its data starts
+ * with rather than by the file name. gzip is decoded with java.util.zip and zstd by the zstd
+ * command; other formats can be added with register. the decoded text is produced on other
+ * threads while it is being searched (see PipelinedInputStream).
+ */
+public interface Codec {
+    // formats tried in order, most recently registered first
+    List<Codec> CODECS = new CopyOnWriteArrayList<>(List.of(new GzipCodec(), new ZstdCodec()));
+
+    // the bytes every stream in this format starts with
+    byte[] magic();
+
+    // the decoded contents of a stream in this format
+    InputStream decode(InputStream in) throws IOException;
+
+    // the decoded contents of a file in this format
+    default InputStream decode(Path path) throws IOException {
+        return decode(Files.newInputStream(path));
+    }
+
+    // pieces of the file that can be decoded independently, in order, or null to decode it as one
+    // stream; used when there are threads to spare
+    default Iterator<PipelinedInputStream.Part> split(Path path) throws IOException {
+        return null;
+    }
+
+    // the decoded contents of the file, decoded on up to threads other threads
+    default InputStream open(Path path, int threads) throws IOException {
+        Iterator<PipelinedInputStream.Part> parts = threads > 1 ? split(path) : null;
+        if (parts != null) return new PipelinedInputStream(parts, threads);
+        return new PipelinedInputStream(decode(path));
+    }
+
+    // add a format, tried before the ones already known
+    static void register(Codec codec) {
+        CODECS.add(0, codec);
+    }
+
+    // the format of a file, or null if it isn't compressed in a known one
+    static Codec of(Path path) throws IOException {
+        byte[] head = new byte[longestMagic()];
+        int n;
+        try (InputStream in = Files.newInputStream(path)) {
+            n = in.readNBytes(head, 0, head.length);
+        }
+        for (Codec codec : CODECS) {
+            if (startsWith(head, n, codec.magic())) return codec;
+        }
+        return null;
+    }
+
+    // the decoded contents of a stream that may be compressed, such as standard input. only as
+    // many bytes as it takes to tell the formats apart are waited for
+    static InputStream decodeAny(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 1 << 16);
+        byte[] head = new byte[longestMagic()];
+        buffered.mark(head.length);
+        int n = 0;
+        while (n < head.length && couldBe(head, n)) {
+            int b = buffered.read();
+            if (b < 0) break;
+            head[n++] = (byte) b;
+        }
+        buffered.reset();
+        for (Codec codec : CODECS) {
+            if (startsWith(head, n, codec.magic())) return new PipelinedInputStream(codec.decode(buffered));
+        }
+        return buffered;
+    }
+
+    private static int longestMagic() {
+        int longest = 0;
+        for (Codec codec : CODECS) longest = Math.max(longest, codec.magic().length);
+        return longest;
+    }
+
+    // return true if the first n bytes of head are the start of some format's magic
+    private static boolean couldBe(byte[] head, int n) {
+        for (Codec codec : CODECS) {
+            byte[] magic = codec.magic();
+            if (n < magic.length && Arrays.equals(head, 0, n, magic, 0, n)) return true;
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] head, int n, byte[] magic) {
+        return n >= magic.length && Arrays.equals(head, 0, magic.length, magic, 0, magic.length);
+    }
+}
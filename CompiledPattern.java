@@ -0,0 +1,207 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Stream;
+
+/**
+ * CompiledPattern.java
+ *
+ * a compiled regexp ready to search with, for using the engine in-process instead of piping
+ * REcompile into REsearch. it is immutable and safe to share between threads: the FSM,
+ * prefilter and pattern split are read-only, and each thread gets its own engine.
+ *
+ *     CompiledPattern p = new Compiler().compile("hug*ed");
+ *     if (p.matches(line)) ...
+ */
+public final class CompiledPattern {
+    // default memory budget for the lazy DFA state cache
+    static final long DEFAULT_CACHE_BYTES = 8L << 20;
+
+    private final FSM fsm;
+    // a table built by REcompile --dfa, searched instead of the FSM when there is one
+    private final DFA dfa;
+    private final boolean useDfa;
+    private final long cacheBytes;
+    private final Prefilter prefilter;
+    private final PatternSet patterns;
+    // a matcher generated for the DFA, searched instead when there is one
+    private final GeneratedMatcher generated;
+    // true if the pattern matches the same lines over bytes as over decoded text
+    private final boolean byteSafe;
+    private final ThreadLocal<Engine> engines;
+
+    public CompiledPattern(FSM fsm) {
+        this(fsm, true, DEFAULT_CACHE_BYTES, true);
+    }
+
+    public CompiledPattern(FSM fsm, boolean useDfa, long cacheBytes, boolean usePrefilter) {
+        this.fsm = fsm;
+        this.dfa = null;
+        this.useDfa = useDfa;
+        this.cacheBytes = cacheBytes;
+        // literals every match must contain, used to skip lines before running the FSM
+        this.prefilter = usePrefilter ? Prefilter.build(fsm) : null;
+        // with several patterns, split off the literal ones for Aho-Corasick
+        this.patterns = fsm.patternCount > 0 ? PatternSet.build(fsm) : null;
+        this.generated = null;
+        this.byteSafe = fsm.isAscii();
+        this.engines = ThreadLocal.withInitial(this::newEngine);
+    }
+
+    // a prebuilt DFA; it holds no per-search state, so every thread shares it
+    public CompiledPattern(DFA dfa) {
+        this.fsm = null;
+        this.dfa = dfa;
+        this.useDfa = true;
+        this.cacheBytes = 0;
+        this.prefilter = null;
+        this.patterns = null;
+        this.generated = null;
+        this.byteSafe = dfa.isAscii();
+        this.engines = ThreadLocal.withInitial(() -> dfa);
+    }
+
+    // the same pattern and prefilter, searched by a generated matcher
+    private CompiledPattern(CompiledPattern pattern, GeneratedMatcher generated) {
+        this.fsm = pattern.fsm;
+        this.dfa = pattern.dfa;
+        this.useDfa = pattern.useDfa;
+        this.cacheBytes = pattern.cacheBytes;
+        this.prefilter = pattern.prefilter;
+        this.patterns = null;
+        this.generated = generated;
+        this.byteSafe = pattern.byteSafe;
+        this.engines = ThreadLocal.withInitial(() -> generated);
+    }
+
+    // read what REcompile wrote: an FSM in the text or binary format, or a DFA table
+    static CompiledPattern read(InputStream in, boolean useDfa, long cacheBytes, boolean usePrefilter) throws IOException {
+        byte[] data = in.readAllBytes();
+        if (DFA.isDFA(data)) return new CompiledPattern(DFA.read(ByteBuffer.wrap(data)));
+        return new CompiledPattern(FSM.read(new ByteArrayInputStream(data)), useDfa, cacheBytes, usePrefilter);
+    }
+
+    // the FSM this pattern runs, or null for a prebuilt DFA
+    public FSM fsm() {
+        return fsm;
+    }
+
+    // return true if the pattern can run over UTF-8 bytes read as Latin-1 and match the same lines
+    // as over the decoded text
+    boolean isAscii() {
+        return byteSafe;
+    }
+
+    // the shared prefilter, or null if there is none
+    Prefilter prefilter() {
+        return prefilter;
+    }
+
+    // return true if any substring of the line is recognised by the pattern
+    public boolean matches(CharSequence line) {
+        int from = prefilter == null ? 0 : prefilter.candidate(line);
+        return from >= 0 && engines.get().search(line, from);
+    }
+
+    // offset of the first line in buf[off, off + len) containing a match, or -1. the bytes are
+    // UTF-8; they are only decoded when the pattern has a wildcard or a non-ASCII literal
+    public int find(byte[] buf, int off, int len) {
+        ByteBuffer wrapped = ByteBuffer.wrap(buf);
+        ByteLine line = new ByteLine();
+        Engine engine = engines.get();
+        int end = off + len;
+        int start = off;
+        while (start < end) {
+            int newline = start;
+            while (newline < end && buf[newline] != '\n') newline++;
+            int lineEnd = newline > start && buf[newline - 1] == '\r' ? newline - 1 : newline;
+            CharSequence text = line;
+            if (byteSafe) {
+                line.set(wrapped, start, lineEnd);
+            } else {
+                text = new String(buf, start, lineEnd - start, StandardCharsets.UTF_8);
+            }
+            int from = prefilter == null ? 0 : prefilter.candidate(text);
+            if (from >= 0 && engine.search(text, from)) return start;
+            start = newline + 1;
+        }
+        return -1;
+    }
+
+    // copy every matching line of the stream to out, return how many there were. like find, the
+    // text is UTF-8, searched as bytes unless the pattern has a wildcard or a non-ASCII literal
+    public long scan(InputStream in, OutputStream out) throws IOException {
+        // shows up in a flight recording as a regex.Search event
+        SearchStats stats = new SearchStats();
+        if (!byteSafe) {
+            long matched = scanDecoded(in, out, stats);
+            stats.commitEvent();
+            return matched;
+        }
+        ByteScanner scanner = new ByteScanner(engines.get(), prefilter, out);
+        scanner.scanStream(in);
+        scanner.addStats(stats);
+        stats.commitEvent();
+        return scanner.matched();
+    }
+
+    // scan, decoding each line so a wildcard consumes a whole character
+    private long scanDecoded(InputStream in, OutputStream out, SearchStats stats) throws IOException {
+        CountingInputStream counted = new CountingInputStream(in);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(counted, StandardCharsets.UTF_8));
+        Writer writer = new OutputStreamWriter(new BufferedOutputStream(out, 1 << 16), StandardCharsets.UTF_8);
+        long lines = 0;
+        long matched = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines++;
+            if (matches(line)) {
+                matched++;
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        writer.flush();
+        stats.addScan(counted.count(), lines, matched, 0, 0);
+        return matched;
+    }
+
+    // the lines of a stream that contain a match
+    public Stream<String> filter(Stream<String> lines) {
+        return lines.filter(this::matches);
+    }
+
+    // the same pattern searched by a matcher generated for its DFA, or this one if there can't
+    // be one: for several patterns, whose matches are reported one by one, for an FSM whose DFA
+    // is too big, or without a Java compiler
+    public CompiledPattern generated() {
+        if (patterns != null) return this;
+        DFA table = dfa != null ? dfa : DFA.build(fsm, DFA.DEFAULT_MAX_STATES);
+        GeneratedMatcher matcher = table == null ? null : GeneratedMatcher.of(table);
+        return matcher == null ? this : new CompiledPattern(this, matcher);
+    }
+
+    // a new engine for this pattern; engines hold per-search state, so one per thread
+    Engine newEngine() {
+        if (generated != null) return generated;
+        if (dfa != null) return dfa;
+        if (patterns != null) {
+            // report which patterns matched, searching only what Aho-Corasick can't handle
+            FSM residual = patterns.residual();
+            return patterns.matcher(residual == null ? null : baseEngine(residual));
+        }
+        return baseEngine(fsm);
+    }
+
+    // small FSMs run bit-parallel; larger ones use a lazily built DFA, falling back to the
+    // NFA if its cache keeps thrashing. with a required literal, only the text around its
+    // occurrences is checked, and those engines take the lines where that would be slow
+    private Engine baseEngine(FSM machine) {
+        if (!useDfa) return new NFA(machine);
+        Engine engine = BitParallel.fits(machine)
+                ? new BitParallel(machine)
+                : new LazyDFA(machine, cacheBytes, new NFA(machine));
+        InnerLiteral inner = InnerLiteral.build(machine, engine);
+        return inner != null ? inner : engine;
+    }
+}
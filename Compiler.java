@@ -7,20 +7,33 @@ import java.util.*;
  * Author: Kai Meiklejohn 
  * 
  * handles parsing and compiling regexps into FSMs.
+ * all parser state lives in the instance, so separate Compilers can run on different threads.
  */
 public class Compiler {
-    // fsm representation using ArrayLists for dynamic sizing
-    static List<String> type = new ArrayList<>(); // "BR", "WC", or literal
-    static List<Integer> next1 = new ArrayList<>();
-    static List<Integer> next2 = new ArrayList<>();
-    static int nextState = 1; // start allocating from state 1 (state 0 is special)
+    // kinds of state; a state that hasn't been set yet (state 0 until the end) has none
+    static final byte BR = 1; // branch
+    static final byte WC = 2; // wildcard
+    static final byte LIT = 3; // literal character
+
+    // fsm representation in growable arrays, so millions of states cost no boxing
+    byte[] kind = new byte[16];
+    char[] ch = new char[16];
+    int[] next1 = new int[16];
+    int[] next2 = new int[16];
+    // pattern number of each tagged accept state (0 if untagged), when several regexps share one FSM
+    int[] patternOf = new int[16];
+    int nextState = 1; // start allocating from state 1 (state 0 is special)
 
     // input regexp and position
-    static String re;
-    static int pos;
+    String re;
+    int pos;
 
     // Track unmatched '('
-    static int parenCount;
+    int parenCount;
+
+    // run the Optimiser over the finished FSM, and how many states it removed
+    boolean optimise = true;
+    int removed;
 
     // fragment class for NFA fragments
     public static class Frag {
@@ -29,285 +42,456 @@ public class Compiler {
         public Frag(int s, int e) { start = s; end = e; }
     }
 
+    // an expression being parsed: the top level, or one inside parentheses. the parser keeps
+    // these on an explicit stack instead of recursing, so nesting depth costs heap, not stack
+    private static final class Group {
+        // the alternatives so far, joined into one fragment, or null before the first is done
+        Frag left;
+        // the branch made at the last '|', waiting for the alternative after it, or -1
+        int branch = -1;
+        // the factors of the current alternative, concatenated
+        Frag term;
+        boolean sawAlternation;
+    }
+
     // initialize parser/compiler
-    public static void init(String regexp) {
+    public void init(String regexp) {
         re = regexp;
         pos = 0;
         nextState = 1; // reset state counter
         parenCount = 0; // reset counter
-        // clear and prepare lists for a new compilation
-        type.clear();
-        next1.clear();
-        next2.clear();
-        // pre-allocate state 0 (will be set by REcompile)
-        type.add(null);
-        next1.add(-1);
-        next2.add(-1);
+        // clear state 0, which will be set once the patterns are parsed
+        kind[0] = 0;
+        ch[0] = 0;
+        next1[0] = -1;
+        next2[0] = -1;
+        patternOf[0] = 0;
+    }
+
+    // compile one or more regexps into a pattern that can be searched from any thread
+    public CompiledPattern compile(String... regexps) {
+        return new CompiledPattern(build(Arrays.asList(regexps)));
+    }
+
+    // compile one or more regexps into a single FSM, with state 0 as the start
+    public FSM build(List<String> regexps) {
+        if (regexps.isEmpty()) throw new RuntimeException("Invalid syntax: no regular expression given.");
+        boolean multi = regexps.size() > 1;
+
+        // 1) initialise parser/compiler
+        init(regexps.get(0));
+
+        int[] starts = new int[regexps.size()];
+        for (int p = 0; p < regexps.size(); p++) {
+            if (p > 0) addPattern(regexps.get(p));
+
+            // 2) parse & compile whole regexp → returns (start,end) of NFA
+            Frag machine = expression();
+
+            // 2a) make sure we consumed the entire string
+            if (pos < re.length() || parenCount != 0) {
+                throw new RuntimeException("Unmatched parentheses or extra input at pos " + pos);
+            }
+
+            // 3) create explicit end state (BR, -1, -1), tagged with the pattern number if there are several
+            int endState = newEndState();
+            patch(machine.end, endState);
+            if (multi) tag(endState, p + 1);
+            starts[p] = machine.start;
+        }
+
+        // 4) wrap with state 0 branching to real start, or fanning out to every pattern's start
+        if (!multi) {
+            setstate(0, ' ', starts[0], starts[0]); // Branch only to start
+        } else {
+            int rest = starts[starts.length - 1];
+            for (int p = starts.length - 2; p >= 1; p--) rest = newBranch(starts[p], rest);
+            setstate(0, ' ', starts[0], rest);
+        }
+
+        // 5) drop the redundant branch and dead states left over from the construction
+        FSM fsm = toFSM();
+        removed = 0;
+        if (optimise) {
+            FSM smaller = Optimiser.optimise(fsm);
+            removed = fsm.size - smaller.size;
+            load(smaller);
+            fsm = smaller;
+        }
+        return fsm;
+    }
+
+    // start parsing another regexp into the same FSM, keeping the states built so far
+    public void addPattern(String regexp) {
+        re = regexp;
+        pos = 0;
+        parenCount = 0;
+    }
+
+    // mark an accept state as belonging to a pattern
+    public void tag(int s, int pattern) {
+        patternOf[s] = pattern;
     }
 
     // print FSM in required format
-    public static void printFSM() {
+    public void printFSM() {
+        StringBuilder out = new StringBuilder();
         // iterate up to the current number of states created
         for (int i = 0; i < nextState; i++) {
-            // handle potential null state 0 before it's set
-            String t = type.get(i) == null ? "NULL" : type.get(i);
-            System.out.printf("%d,%s,%d,%d\n", i, t, next1.get(i), next2.get(i));
+            out.append(i).append(',').append(typeName(i)).append(',').append(next1[i]).append(',').append(next2[i]);
+            // tagged accept states carry their pattern number in a fifth field
+            if (patternOf[i] != 0) out.append(',').append(patternOf[i]);
+            out.append('\n');
+            if (out.length() >= 1 << 16) {
+                System.out.append(out);
+                out.setLength(0);
+            }
         }
+        System.out.append(out);
+        System.out.flush();
     }
 
-    // set a state
-    public static void setstate(int s, String t, int n1, int n2) {
-        // ensure list capacity if needed (should be handled by newState)
-        while (s >= type.size()) {
-             type.add(null);
-             next1.add(-1);
-             next2.add(-1);
+    // the type field REcompile prints: "BR", "WC" or the literal character
+    private String typeName(int s) {
+        switch (kind[s]) {
+            case BR:
+                return "BR";
+            case WC:
+                return "WC";
+            case LIT:
+                return String.valueOf(ch[s]);
+            default:
+                // state 0 before it is set
+                return "NULL";
         }
-        type.set(s, t);
-        next1.set(s, n1);
-        next2.set(s, n2);
+    }
+
+    // the FSM built so far as arrays, the same form REsearch loads
+    public FSM toFSM() {
+        int n = nextState;
+        char[] fsmCh = new char[n];
+        boolean[] isWildcard = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            if (kind[i] == WC) {
+                fsmCh[i] = '.';
+                isWildcard[i] = true;
+            } else if (kind[i] == LIT) {
+                fsmCh[i] = ch[i];
+            }
+        }
+        return new FSM(fsmCh, Arrays.copyOf(next1, n), Arrays.copyOf(next2, n), isWildcard, Arrays.copyOf(patternOf, n));
+    }
+
+    // replace the states built so far with those of an FSM
+    public void load(FSM fsm) {
+        nextState = 0;
+        ensure(fsm.size);
+        for (int i = 0; i < fsm.size; i++) {
+            if (fsm.isWildcard[i]) kind[i] = WC;
+            else if (fsm.isBranch(i)) kind[i] = BR;
+            else kind[i] = LIT;
+            ch[i] = fsm.isWildcard[i] || fsm.isBranch(i) ? 0 : fsm.ch[i];
+            next1[i] = fsm.next1[i];
+            next2[i] = fsm.next2[i];
+            patternOf[i] = fsm.pattern[i];
+        }
+        nextState = fsm.size;
+    }
+
+    // set a state
+    public void setstate(int s, String t, int n1, int n2) {
+        if (t.equals("BR")) setstate(s, BR, '\0', n1, n2);
+        else if (t.equals("WC")) setstate(s, WC, '\0', n1, n2);
+        else setstate(s, LIT, t.charAt(0), n1, n2);
     }
 
     // overload for char type
-    public static void setstate(int s, char t, int n1, int n2) {
-        if (t == ' ') setstate(s, "BR", n1, n2);
-        else if (t == '.') setstate(s, "WC", n1, n2);
-        else setstate(s, String.valueOf(t), n1, n2);
+    public void setstate(int s, char t, int n1, int n2) {
+        if (t == ' ') setstate(s, BR, '\0', n1, n2);
+        else if (t == '.') setstate(s, WC, '\0', n1, n2);
+        else setstate(s, LIT, t, n1, n2);
     }
 
-    // parse and compile the whole regexp
-    public static Frag expression() {
+    private void setstate(int s, byte k, char c, int n1, int n2) {
+        ensure(s + 1);
+        kind[s] = k;
+        ch[s] = c;
+        next1[s] = n1;
+        next2[s] = n2;
+    }
+
+    // make room for states up to n, doubling so adding states stays linear overall
+    private void ensure(int n) {
+        if (n <= kind.length) return;
+        int capacity = Math.max(n, kind.length * 2);
+        int old = kind.length;
+        kind = Arrays.copyOf(kind, capacity);
+        ch = Arrays.copyOf(ch, capacity);
+        next1 = Arrays.copyOf(next1, capacity);
+        next2 = Arrays.copyOf(next2, capacity);
+        patternOf = Arrays.copyOf(patternOf, capacity);
+        // states not set yet lead nowhere
+        Arrays.fill(next1, old, capacity, -1);
+        Arrays.fill(next2, old, capacity, -1);
+    }
+
+    // parse and compile the whole regexp. this is the recursive descent
+    //   expression = term ('|' term)*,  term = factor*,  factor = base ('*' | '+' | '?')*,
+    //   base = '(' expression ')' | '.' | '\\' char | char
+    // with the recursion at '(' replaced by a stack of groups, so deep nesting can't overflow
+    // the stack; states are made in the same order, so the FSM comes out the same
+    public Frag expression() {
         if (re == null || re.length() == 0) {
             throw new RuntimeException("Invalid syntax: Regular expression cannot be empty.");
         }
-        // Disallow regex starting with '|'
-        if (peek() == '|') {
-            throw new RuntimeException("Invalid syntax: '|' cannot be at the start of a regexp.");
-        }
-        Frag left = term();
-        boolean sawAlternation = false;
-        while (peek() == '|') {
-            sawAlternation = true;
-            eat('|');
-            // Check for missing right side
-            if (endOfTerm()) {
-                throw new RuntimeException("Invalid syntax: '|' must have a regexp on both sides.");
+        Deque<Group> open = new ArrayDeque<>();
+        Group group = openGroup();
+        while (true) {
+            if (!endOfTerm()) {
+                // factor
+                char c = peek();
+                if (c == '*' || c == '+' || c == '?') {
+                    throw new RuntimeException("Invalid syntax: '" + c + "' cannot appear without a preceding base");
+                }
+                if (c == '(') {
+                    parenCount++; // saw an '(', increment
+                    eat('(');
+                    if (peek() == ')') {
+                        throw new RuntimeException("Invalid syntax: Brackets cannot be empty. Something must be inside brackets.");
+                    }
+                    open.push(group);
+                    group = openGroup();
+                    continue;
+                }
+                addFactor(group, closures(base()));
+                continue;
             }
-            // Check for missing left side (NOP fragment means empty)
-            if (left == null || (left.start == left.end && type.get(left.start).equals("BR") && next1.get(left.start) == left.start && next2.get(left.start) == left.start)) {
-                throw new RuntimeException("Invalid syntax: '|' must have a regexp on both sides.");
+
+            // end of an alternative: join it to the ones before
+            Frag right = endTerm(group);
+            if (group.branch == -1) {
+                group.left = right;
+            } else {
+                // Check for missing right side (NOP fragment means empty)
+                if (isNop(right)) {
+                    throw new RuntimeException("Invalid syntax: '|' must have a regexp on both sides.");
+                }
+                next2[group.branch] = right.start;
+
+                // create a common end state for the alternation
+                int e = newState(BR, '\0', -1, -1);
+                patch(group.left.end, e); // patch end of left fragment to the new end state
+                patch(right.end, e); // patch end of right fragment to the new end state
+                group.left = new Frag(group.branch, e); // resulting fragment uses the branch as start, new state as end
+                group.branch = -1;
             }
-            int s = newState("BR", left.start, -1); // placeholder for right term start
-            Frag right = term();
-            // Check for missing right side (NOP fragment means empty)
-            if (right == null || (right.start == right.end && type.get(right.start).equals("BR") && next1.get(right.start) == right.start && next2.get(right.start) == right.start)) {
+            if (peek() == '|') {
+                group.sawAlternation = true;
+                eat('|');
+                // Check for missing right side
+                if (endOfTerm()) {
+                    throw new RuntimeException("Invalid syntax: '|' must have a regexp on both sides.");
+                }
+                // Check for missing left side (NOP fragment means empty)
+                if (isNop(group.left)) {
+                    throw new RuntimeException("Invalid syntax: '|' must have a regexp on both sides.");
+                }
+                group.branch = newState(BR, '\0', group.left.start, -1); // placeholder for right term start
+                continue;
+            }
+            // If the only thing in the expression was '|', error
+            if (group.sawAlternation && isNop(group.left)) {
                 throw new RuntimeException("Invalid syntax: '|' must have a regexp on both sides.");
             }
-            next2.set(s, right.start); // use set for existing state
+            if (open.isEmpty()) return group.left;
 
-            // create a common end state for the alternation
-            int e = newState("BR", -1, -1);
-            patch(left.end, e); // patch end of left fragment to the new end state
-            patch(right.end, e); // patch end of right fragment to the new end state
-            left = new Frag(s, e); // resulting fragment uses the branch as start, new state as end
+            // the group is a base of the factor it is in
+            Frag f = group.left;
+            group = open.pop();
+            eat(')');
+            parenCount--; // matched one ')', decrement
+            addFactor(group, closures(f));
         }
-        // If the only thing in the expression was '|', error
-        if (sawAlternation && (left == null || (left.start == left.end && type.get(left.start).equals("BR") && next1.get(left.start) == left.start && next2.get(left.start) == left.start))) {
-            throw new RuntimeException("Invalid syntax: '|' must have a regexp on both sides.");
+    }
+
+    // start an expression, at the top or after '('
+    private Group openGroup() {
+        // Disallow regex starting with '|'
+        if (peek() == '|') {
+            throw new RuntimeException("Invalid syntax: '|' cannot be at the start of a regexp.");
         }
-        return left;
+        return new Group();
     }
 
-    // term: sequence of factors
-    private static Frag term() {
-        Frag left = null;
-        while (true) {
-            if (endOfTerm()) break;
-            Frag f = factor();
-            if (left == null) left = f;
-            else {
-                patch(left.end, f.start);
-                left = new Frag(left.start, f.end);
-            }
+    // concatenate a factor onto the current alternative
+    private void addFactor(Group group, Frag f) {
+        if (group.term == null) {
+            group.term = f;
+        } else {
+            patch(group.term.end, f.start);
+            group.term = new Frag(group.term.start, f.end);
         }
-        if (left == null) {
+    }
+
+    // the current alternative, now that it has ended
+    private Frag endTerm(Group group) {
+        Frag term = group.term;
+        group.term = null;
+        if (term == null) {
             // handle empty term (e.g., empty parens or start/end of input)
             // create a NOP state (BR to itself, effectively)
-            int s = newState("BR", -1, -1);
+            int s = newState(BR, '\0', -1, -1);
             patch(s, s); // point NOP to itself
             return new Frag(s, s);
         }
-        return left;
+        return term;
     }
 
-    // factor: base + closure/option
-    private static Frag factor() {
-        Frag f = null;
+    // return true if a fragment is the NOP that stands for nothing
+    private boolean isNop(Frag f) {
+        return f == null || (f.start == f.end && kind[f.start] == BR && next1[f.start] == f.start && next2[f.start] == f.start);
+    }
+
+    // apply the closure and option operators after a base
+    private Frag closures(Frag f) {
         boolean lastWasSpecial = false; // Track if the last character was a special character
         while (true) {
             char c = peek();
             if (c == '*') {
-                if (f == null) {
-                    throw new RuntimeException("Invalid syntax: '*' cannot appear without a preceding base");
-                }
                 eat('*');
                 if (peek() == '*') {
                     throw new RuntimeException("Invalid syntax: multiple consecutive '*' operators are not allowed");
                 }
-                int s = newState("BR", f.start, -1); // branch to start of f, or skip
+                int s = newState(BR, '\0', f.start, -1); // branch to start of f, or skip
                 patch(f.end, s); // loop back from end of f to branch
                 patch(s, -1, false); // placeholder for skipping (will be patched later)
                 f = new Frag(s, s); // new fragment is just the branch state
                 lastWasSpecial = true;
             } else if (c == '+') {
-                if (f == null) {
-                    throw new RuntimeException("Invalid syntax: '+' cannot appear without a preceding base");
-                }
                 eat('+');
                 if (lastWasSpecial) {
                     throw new RuntimeException("Invalid syntax: consecutive special characters are not allowed");
                 }
                 // f+ is equivalent to ff*
-                int s = newState("BR", f.start, -1); // branch for the loop (*) part
+                int s = newState(BR, '\0', f.start, -1); // branch for the loop (*) part
                 patch(f.end, s); // loop back
                 patch(s, -1, false); // placeholder for exiting loop
                 // the fragment starts at f.start, ends at the branch s
                 f = new Frag(f.start, s);
                 lastWasSpecial = true;
             } else if (c == '?') {
-                if (f == null) {
-                    throw new RuntimeException("Invalid syntax: '?' cannot appear without a preceding base");
-                }
                 eat('?');
                 if (lastWasSpecial) {
                     throw new RuntimeException("Invalid syntax: consecutive special characters are not allowed");
                 }
-                int s = newState("BR", f.start, -1); // branch to start of f, or skip
+                int s = newState(BR, '\0', f.start, -1); // branch to start of f, or skip
                 // need an end state for the optional part
-                int e = newState("BR", -1, -1);
+                int e = newState(BR, '\0', -1, -1);
                 patch(f.end, e); // end of f goes to the new end state
                 patch(s, e, false); // skipping the branch also goes to the new end state
                 f = new Frag(s, e); // new fragment starts at branch, ends at new end state
                 lastWasSpecial = true;
             } else {
-                if (f == null) {
-                    f = base();
-                } else {
-                    break;
-                }
-                lastWasSpecial = false; // Reset the flag for non-special characters
+                return f;
             }
         }
-        return f;
     }
 
-    // base: literal, wildcard, parenthesis, escaped
-    private static Frag base() {
+    // base: literal, wildcard or escaped character; parentheses are handled by expression
+    private Frag base() {
         char c = peek();
-        if (c == '(') {
-            parenCount++; // saw an '(', increment
-            eat('(');
-            if (peek() == ')') {
-                throw new RuntimeException("Invalid syntax: Brackets cannot be empty. Something must be inside brackets.");
-            }
-            Frag f = expression();
-            eat(')');
-            parenCount--; // matched one ')', decrement
-            return f;
-        } else if (c == '.') {
+        if (c == '.') {
             eat('.');
-            int s = newState("WC", -1, -1);
+            int s = newState(WC, '\0', -1, -1);
             return new Frag(s, s);
         } else if (c == '\\') {
             eat('\\');
             char lit = next();
             if (lit == 0) throw new RuntimeException("Invalid escape sequence at end of input");
-            int s = newState(String.valueOf(lit), -1, -1);
+            int s = newState(LIT, lit, -1, -1);
             return new Frag(s, s);
-        } else if (c != 0 && !isSpecial(c)) {
+        } else {
             eat(c);
-            int s = newState(String.valueOf(c), -1, -1);
+            int s = newState(LIT, c, -1, -1);
             return new Frag(s, s);
-        } else {
-            // this case should ideally not be reached with valid regex
-            // if it is (e.g., empty group () ), return a NOP fragment
-             int s = newState("BR", -1, -1);
-             patch(s, s);
-             return new Frag(s, s);
         }
     }
 
     // utility: create a new state
-    private static int newState(String t, int n1, int n2) {
+    private int newState(byte k, char c, int n1, int n2) {
         int s = nextState++; // get current next available state index and increment
-        // add the new state's data to the lists
-        type.add(t);
-        next1.add(n1);
-        next2.add(n2);
+        ensure(nextState);
+        kind[s] = k;
+        ch[s] = c;
+        next1[s] = n1;
+        next2[s] = n2;
+        patternOf[s] = 0;
         return s;
     }
 
     // utility: create a new end state (BR, -1, -1)
-    public static int newEndState() {
-        return newState("BR", -1, -1);
+    public int newEndState() {
+        return newState(BR, '\0', -1, -1);
+    }
+
+    // utility: create a new branch state
+    public int newBranch(int n1, int n2) {
+        return newState(BR, '\0', n1, n2);
     }
 
     // patch the end state(s) of a fragment to point to target
-    public static void patch(int s, int target) {
+    public void patch(int s, int target) {
         if (s == -1) return; // avoid patching null states
 
-        if (type.get(s) != null && type.get(s).equals("BR")) {
+        if (kind[s] == BR) {
             // for BR states, patch *all* dangling (-1) transitions to the target.
-            if (next1.get(s) == -1) {
-                next1.set(s, target);
+            if (next1[s] == -1) {
+                next1[s] = target;
             }
-            if (next2.get(s) == -1) {
-                next2.set(s, target);
+            if (next2[s] == -1) {
+                next2[s] = target;
             }
         } else { // literal or WC state
-            next1.set(s, target);
-            next2.set(s, target);
+            next1[s] = target;
+            next2[s] = target;
         }
     }
 
     // patch only the branch (for ? operator)
-    private static void patch(int s, int target, boolean both) {
-         if (s == -1) return; // avoid patching null states
-        if (type.get(s) != null && type.get(s).equals("BR")) {
+    private void patch(int s, int target, boolean both) {
+        if (s == -1) return; // avoid patching null states
+        if (kind[s] == BR) {
             if (both) {
                 // this case might not be needed if 'both' is only used for non-BR
-                if (next1.get(s) == -1) next1.set(s, target);
-                if (next2.get(s) == -1) next2.set(s, target);
+                if (next1[s] == -1) next1[s] = target;
+                if (next2[s] == -1) next2[s] = target;
             } else {
                 // prefer patching next2 first for optional path (skip path)
-                if (next2.get(s) == -1) next2.set(s, target);
-                else if (next1.get(s) == -1) next1.set(s, target); // fallback if next2 was already patched
+                if (next2[s] == -1) next2[s] = target;
+                else if (next1[s] == -1) next1[s] = target; // fallback if next2 was already patched
             }
         } else {
             // patching a non-BR state for ? doesn't make sense in Thompson's construction
             // if called, update both transitions.
-            next1.set(s, target);
-            next2.set(s, target);
+            next1[s] = target;
+            next2[s] = target;
         }
     }
 
     // parsing helpers
-    private static char peek() {
+    private char peek() {
         if (pos >= re.length()) return (char)0;
         return re.charAt(pos);
     }
-    private static char next() {
+    private char next() {
         if (pos >= re.length()) return (char)0;
         return re.charAt(pos++);
     }
-    private static void eat(char c) {
+    private void eat(char c) {
         if (peek() == c) pos++;
         else throw new RuntimeException("Expected '" + c + "' at pos " + pos + ", found '" + peek() + "'");
     }
-    private static boolean isSpecial(char c) {
-        return c == '(' || c == ')' || c == '*' || c == '+' || c == '?' || c == '|' || c == '.' || c == '\\';
-    }
-    private static boolean endOfTerm() {
+    private boolean endOfTerm() {
         char c = peek();
         return c == 0 || c == ')' || c == '|';
     }
@@ -0,0 +1,34 @@
+import java.io.*;
+
+/**
+ * CountingInputStream.java
+ *
+ * counts the bytes read through it. a search that decodes its text reports this as the bytes it
+ * scanned, since the characters they decode to can be fewer (UTF-8) or miss a '\r' (CRLF ends).
+ */
+final class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) count++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) count += n;
+        return n;
+    }
+
+    // bytes read so far
+    long count() {
+        return count;
+    }
+}
@@ -0,0 +1,447 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * DFA.java
+ *
+ * a fully built, minimal DFA for searching with, made once by REcompile --dfa instead of lazily
+ * at search time. subset construction runs over the whole FSM, Hopcroft's algorithm merges
+ * equivalent states, and characters the DFA can't tell apart share a class, so the table is
+ * states x classes and each character costs one class lookup and one table lookup.
+ * accepting is final (a line matches once any substring does), so all accepting sets become
+ * a single accept state that loops to itself.
+ */
+public final class DFA implements Engine {
+    // binary format: magic, version, states, classes, start, accept, default class,
+    // then the class of each listed character and the transition table
+    static final int MAGIC = 0x52454644; // "REFD"
+    static final int VERSION = 1;
+    private static final int HEADER = 32;
+    // most states built before giving up, unless REcompile is told otherwise
+    static final int DEFAULT_MAX_STATES = 10000;
+
+    private final int states;
+    private final int classes;
+    private final int start;
+    // the accept state, or -1 if nothing can match
+    private final int accept;
+    private final char[] classOf;
+    // table[state * classes + class] is the next state
+    private final int[] table;
+    // the same table holding state * classes, so search needs no multiply
+    private final int[] rows;
+
+    private DFA(int states, int classes, int start, int accept, char[] classOf, int[] table) {
+        this.states = states;
+        this.classes = classes;
+        this.start = start;
+        this.accept = accept;
+        this.classOf = classOf;
+        this.table = table;
+        this.rows = new int[table.length];
+        for (int i = 0; i < table.length; i++) rows[i] = table[i] * classes;
+    }
+
+    // number of states
+    public int size() {
+        return states;
+    }
+
+    // number of character classes
+    public int classCount() {
+        return classes;
+    }
+
+    // the start state, and the accept state or -1; with next, for turning the table into code
+    int start() {
+        return start;
+    }
+
+    int accept() {
+        return accept;
+    }
+
+    // the next state from state on character c
+    int next(int state, char c) {
+        return table[state * classes + classOf[c]];
+    }
+
+    // the characters whose class differs from the one most characters share
+    char[] listed() {
+        char other = classOf[Character.MAX_VALUE];
+        StringBuilder listed = new StringBuilder();
+        for (int c = 0; c < classOf.length; c++) {
+            if (classOf[c] != other) listed.append((char) c);
+        }
+        return listed.toString().toCharArray();
+    }
+
+    // return true if the DFA can run over UTF-8 bytes and match the same lines. every non-ASCII
+    // character must share one class, and that class must be dead: from any state it goes back to
+    // the start, so the bytes of a multi-byte character land where the one character would. a
+    // wildcard sends it somewhere else, and then each byte would count as a character
+    boolean isAscii() {
+        int high = classOf[0x80];
+        for (int c = 0x80; c < classOf.length; c++) {
+            if (classOf[c] != high) return false;
+        }
+        for (int s = 0; s < states; s++) {
+            if (s != accept && table[s * classes + high] != start) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean search(CharSequence line, int from) {
+        final int acceptRow = accept * classes;
+        final char[] classOf = this.classOf;
+        final int[] rows = this.rows;
+        int row = start * classes;
+        if (row == acceptRow) return true;
+        for (int i = from; i < line.length(); i++) {
+            row = rows[row + classOf[line.charAt(i)]];
+            if (row == acceptRow) return true;
+        }
+        return false;
+    }
+
+    // build the minimal DFA for an FSM, or return null if it would need more than maxStates states
+    public static DFA build(FSM fsm, int maxStates) {
+        Builder builder = new Builder(fsm, maxStates);
+        if (!builder.construct()) return null;
+        return builder.minimise();
+    }
+
+    // write the binary format in one go
+    void write(OutputStream out) throws IOException {
+        // only characters whose class differs from the rest are listed
+        char other = classOf[Character.MAX_VALUE];
+        int listed = 0;
+        for (int c = 0; c < classOf.length; c++) {
+            if (classOf[c] != other) listed++;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + listed * 6 + table.length * 4);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(states).putInt(classes)
+                .putInt(start).putInt(accept).putInt(other).putInt(listed);
+        for (int c = 0; c < classOf.length; c++) {
+            if (classOf[c] != other) buf.putChar((char) c).putInt(classOf[c]);
+        }
+        buf.asIntBuffer().put(table);
+        out.write(buf.array());
+        out.flush();
+    }
+
+    // return true if the data starts like a binary DFA
+    static boolean isDFA(byte[] data) {
+        return data.length >= 4 && ByteBuffer.wrap(data).getInt(0) == MAGIC;
+    }
+
+    // load the binary format
+    static DFA read(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER || buf.getInt() != MAGIC) throw new IOException("not a binary DFA");
+        int version = buf.getInt();
+        if (version != VERSION) throw new IOException("unsupported binary DFA version " + version);
+        int states = buf.getInt();
+        int classes = buf.getInt();
+        int start = buf.getInt();
+        int accept = buf.getInt();
+        int other = buf.getInt();
+        int listed = buf.getInt();
+        if (states <= 0 || classes <= 0 || listed < 0
+                || buf.remaining() != listed * 6L + (long) states * classes * 4) {
+            throw new IOException("truncated binary DFA");
+        }
+        char[] classOf = new char[Character.MAX_VALUE + 1];
+        Arrays.fill(classOf, (char) other);
+        for (int i = 0; i < listed; i++) {
+            char c = buf.getChar();
+            classOf[c] = (char) buf.getInt();
+        }
+        int[] table = new int[states * classes];
+        buf.asIntBuffer().get(table);
+        for (int t : table) {
+            if (t < 0 || t >= states) throw new IOException("bad DFA transition " + t);
+        }
+        if (start < 0 || start >= states || accept >= states) throw new IOException("bad DFA start or accept state");
+        return new DFA(states, classes, start, accept, classOf, table);
+    }
+
+    // subset construction and minimisation
+    private static final class Builder {
+        private final FSM fsm;
+        private final int maxStates;
+        private final int classes;
+        // transitions by FSM character class, grown as states are added
+        private int[] table = new int[0];
+        private int count;
+        private int accept = -1;
+        private int start;
+
+        // scratch space for closures
+        private final int[] mark;
+        private int generation;
+        private final int[] stack;
+        private final int[] members;
+        private boolean acceptSeen;
+
+        Builder(FSM fsm, int maxStates) {
+            this.fsm = fsm;
+            this.maxStates = maxStates;
+            this.classes = fsm.classCount;
+            this.mark = new int[fsm.size];
+            this.stack = new int[fsm.size];
+            this.members = new int[fsm.size + 1];
+        }
+
+        // build every reachable DFA state, return false if there are too many
+        boolean construct() {
+            Map<Key, Integer> index = new HashMap<>();
+            List<int[]> sets = new ArrayList<>();
+            int[] seeds = new int[fsm.size + 1];
+            seeds[0] = 0;
+            int[] set = closure(seeds, 1);
+            if (acceptSeen) {
+                start = acceptState();
+                return true;
+            }
+            start = addState(set, index, sets);
+
+            // states are numbered in the order they are found, so this walks them breadth first
+            for (int s = 0; s < count; s++) {
+                if (s == accept) continue;
+                int[] from = sets.get(s);
+                for (int cls = 0; cls < classes; cls++) {
+                    char c = fsm.classChar[cls];
+                    int n = 0;
+                    for (int state : from) {
+                        if ((fsm.isWildcard[state] || (cls != 0 && fsm.ch[state] == c)) && fsm.next1[state] != -1) {
+                            seeds[n++] = fsm.next1[state];
+                        }
+                    }
+                    // state 0 again, so a new match can start at the next position
+                    seeds[n++] = 0;
+                    int[] next = closure(seeds, n);
+                    int target = acceptSeen ? acceptState() : addState(next, index, sets);
+                    if (count > maxStates) return false;
+                    table[s * classes + cls] = target;
+                }
+            }
+            return true;
+        }
+
+        // the single accept state, looping to itself on every class
+        private int acceptState() {
+            if (accept == -1) {
+                accept = newState();
+                for (int cls = 0; cls < classes; cls++) table[accept * classes + cls] = accept;
+            }
+            return accept;
+        }
+
+        // look up or create the DFA state for a set of FSM states
+        private int addState(int[] set, Map<Key, Integer> index, List<int[]> sets) {
+            Key key = new Key(set);
+            Integer existing = index.get(key);
+            if (existing != null) return existing;
+            int s = newState();
+            while (sets.size() < s) sets.add(null);
+            sets.add(set);
+            index.put(key, s);
+            return s;
+        }
+
+        private int newState() {
+            if ((count + 1) * classes > table.length) table = Arrays.copyOf(table, Math.max(16, count * 2) * classes);
+            return count++;
+        }
+
+        // epsilon closure of the seed states, keeping only the states that consume a character
+        private int[] closure(int[] seeds, int n) {
+            if (++generation == 0) {
+                Arrays.fill(mark, 0);
+                generation = 1;
+            }
+            acceptSeen = false;
+            int top = 0;
+            for (int i = 0; i < n; i++) top = push(seeds[i], top);
+            int size = 0;
+            while (top > 0) {
+                int state = stack[--top];
+                if (fsm.isAccept(state)) {
+                    acceptSeen = true;
+                } else if (fsm.isBranch(state)) {
+                    if (fsm.next1[state] != -1) top = push(fsm.next1[state], top);
+                    if (fsm.next2[state] != -1) top = push(fsm.next2[state], top);
+                } else {
+                    members[size++] = state;
+                }
+            }
+            int[] set = Arrays.copyOf(members, size);
+            Arrays.sort(set);
+            return set;
+        }
+
+        // push a state onto the closure stack unless it has already been seen
+        private int push(int state, int top) {
+            if (mark[state] != generation) {
+                mark[state] = generation;
+                stack[top++] = state;
+            }
+            return top;
+        }
+
+        // merge equivalent states with Hopcroft's partition refinement, then merge equal columns
+        DFA minimise() {
+            int n = count;
+            // predecessors by class, as offsets into one array: pred[predStart[cls * (n + 1) + t] ...]
+            int[] predStart = new int[classes * (n + 1) + 1];
+            for (int s = 0; s < n; s++) {
+                for (int cls = 0; cls < classes; cls++) predStart[cls * (n + 1) + table[s * classes + cls] + 1]++;
+            }
+            for (int i = 1; i < predStart.length; i++) predStart[i] += predStart[i - 1];
+            int[] pred = new int[n * classes];
+            int[] fill = Arrays.copyOf(predStart, predStart.length);
+            for (int s = 0; s < n; s++) {
+                for (int cls = 0; cls < classes; cls++) pred[fill[cls * (n + 1) + table[s * classes + cls]]++] = s;
+            }
+
+            // the partition: block b holds elems[first[b] .. end[b]), marked ones at the front
+            int[] elems = new int[n];
+            int[] loc = new int[n];
+            int[] blockOf = new int[n];
+            int[] first = new int[n];
+            int[] end = new int[n];
+            int[] marked = new int[n];
+            int blocks = 0;
+            int pos = 0;
+            // the accept state on its own, then everything else
+            if (accept != -1) {
+                elems[pos] = accept;
+                loc[accept] = pos++;
+                blockOf[accept] = blocks;
+                first[blocks] = 0;
+                end[blocks++] = pos;
+            }
+            int rest = pos;
+            for (int s = 0; s < n; s++) {
+                if (s == accept) continue;
+                elems[pos] = s;
+                loc[s] = pos++;
+                blockOf[s] = blocks;
+            }
+            if (pos > rest) {
+                first[blocks] = rest;
+                end[blocks++] = pos;
+            }
+
+            int[] work = new int[n];
+            boolean[] inWork = new boolean[n];
+            int top = 0;
+            for (int b = 0; b < blocks; b++) {
+                work[top++] = b;
+                inWork[b] = true;
+            }
+            int[] splitter = new int[n];
+            int[] touched = new int[n];
+            while (top > 0) {
+                int b = work[--top];
+                inWork[b] = false;
+                int size = end[b] - first[b];
+                System.arraycopy(elems, first[b], splitter, 0, size);
+                for (int cls = 0; cls < classes; cls++) {
+                    // mark every state with a transition on this class into the splitter
+                    int touchedCount = 0;
+                    for (int i = 0; i < size; i++) {
+                        int t = splitter[i];
+                        for (int k = predStart[cls * (n + 1) + t]; k < predStart[cls * (n + 1) + t + 1]; k++) {
+                            int p = pred[k];
+                            int y = blockOf[p];
+                            int boundary = first[y] + marked[y];
+                            if (loc[p] < boundary) continue;
+                            if (marked[y] == 0) touched[touchedCount++] = y;
+                            // swap p to the end of the marked part
+                            int other = elems[boundary];
+                            elems[boundary] = p;
+                            elems[loc[p]] = other;
+                            loc[other] = loc[p];
+                            loc[p] = boundary;
+                            marked[y]++;
+                        }
+                    }
+                    // split each touched block into its marked and unmarked parts
+                    for (int i = 0; i < touchedCount; i++) {
+                        int y = touched[i];
+                        int m = marked[y];
+                        marked[y] = 0;
+                        if (m == end[y] - first[y]) continue;
+                        int z = blocks++;
+                        first[z] = first[y];
+                        end[z] = first[y] + m;
+                        first[y] = end[z];
+                        for (int k = first[z]; k < end[z]; k++) blockOf[elems[k]] = z;
+                        if (inWork[y]) {
+                            work[top++] = z;
+                            inWork[z] = true;
+                        } else {
+                            // only the smaller half needs to be used as a splitter
+                            int smaller = end[z] - first[z] <= end[y] - first[y] ? z : y;
+                            work[top++] = smaller;
+                            inWork[smaller] = true;
+                        }
+                    }
+                }
+            }
+
+            // one state per block, and one class per distinct column of the table
+            int[] minimal = new int[blocks * classes];
+            for (int b = 0; b < blocks; b++) {
+                int s = elems[first[b]];
+                for (int cls = 0; cls < classes; cls++) minimal[b * classes + cls] = blockOf[table[s * classes + cls]];
+            }
+            Map<List<Integer>, Integer> columns = new HashMap<>();
+            int[] newClass = new int[classes];
+            List<Integer> kept = new ArrayList<>();
+            for (int cls = 0; cls < classes; cls++) {
+                List<Integer> column = new ArrayList<>(blocks);
+                for (int b = 0; b < blocks; b++) column.add(minimal[b * classes + cls]);
+                Integer id = columns.get(column);
+                if (id == null) {
+                    id = kept.size();
+                    columns.put(column, id);
+                    kept.add(cls);
+                }
+                newClass[cls] = id;
+            }
+            int k = kept.size();
+            int[] compact = new int[blocks * k];
+            for (int b = 0; b < blocks; b++) {
+                for (int j = 0; j < k; j++) compact[b * k + j] = minimal[b * classes + kept.get(j)];
+            }
+            char[] classOf = new char[Character.MAX_VALUE + 1];
+            for (int c = 0; c < classOf.length; c++) classOf[c] = (char) newClass[fsm.classOf[c]];
+            return new DFA(blocks, k, blockOf[start], accept == -1 ? -1 : blockOf[accept], classOf, compact);
+        }
+    }
+
+    // hash key for a set of FSM states
+    private static final class Key {
+        final int[] set;
+        final int hash;
+
+        Key(int[] set) {
+            this.set = set;
+            this.hash = Arrays.hashCode(set);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(set, ((Key) o).set);
+        }
+    }
+}
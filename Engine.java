@@ -0,0 +1,14 @@
+/**
+ * Engine.java
+ *
+ * common interface for the ways of running an FSM over a line of text
+ */
+public interface Engine {
+    // return true if any substring of the line starting at or after from is recognised by the FSM
+    boolean search(CharSequence line, int from);
+
+    // return true if any substring of the line is recognised by the FSM
+    default boolean search(CharSequence line) {
+        return search(line, 0);
+    }
+}
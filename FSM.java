@@ -0,0 +1,186 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * FSM.java
+ *
+ * immutable view of a finite state machine loaded from REcompile output, shared by the search engines
+ */
+public class FSM {
+    // binary format: magic, version, state count, then next1[], next2[], pattern[], ch[] and flags[]
+    static final int MAGIC = 0x52454653; // "REFS"
+    static final int VERSION = 1;
+    private static final int HEADER = 12;
+    private static final byte WILDCARD = 1;
+
+    // state arrays, indexed by state number
+    final char[] ch;
+    final int[] next1;
+    final int[] next2;
+    final boolean[] isWildcard;
+    final int size;
+    // pattern number of each accept state (0 if untagged), for FSMs combining several regexps
+    final int[] pattern;
+    final int patternCount;
+
+    // equivalence classes of input characters: class 0 is every character no literal state uses
+    final char[] classOf;
+    // one representative character per class
+    final char[] classChar;
+    final int classCount;
+
+    public FSM(char[] ch, int[] next1, int[] next2, boolean[] isWildcard) {
+        this(ch, next1, next2, isWildcard, new int[ch.length]);
+    }
+
+    public FSM(char[] ch, int[] next1, int[] next2, boolean[] isWildcard, int[] pattern) {
+        this.ch = ch;
+        this.next1 = next1;
+        this.next2 = next2;
+        this.isWildcard = isWildcard;
+        this.size = ch.length;
+        this.pattern = pattern;
+        int max = 0;
+        for (int p : pattern) max = Math.max(max, p);
+        this.patternCount = max;
+
+        // give every distinct literal its own class so a transition only depends on the class
+        classOf = new char[Character.MAX_VALUE + 1];
+        char[] reps = new char[size + 1];
+        int count = 1;
+        for (int s = 0; s < size; s++) {
+            if (isBranch(s) || isWildcard[s] || isAccept(s)) continue;
+            if (classOf[ch[s]] == 0) {
+                classOf[ch[s]] = (char) count;
+                reps[count++] = ch[s];
+            }
+        }
+        classChar = Arrays.copyOf(reps, count);
+        classCount = count;
+    }
+
+    // return true if the FSM can run over UTF-8 bytes and match the same lines: every literal is
+    // an ASCII character and there is no wildcard, which over bytes would consume one byte of a
+    // multi-byte character rather than the whole of it
+    boolean isAscii() {
+        for (int s = 0; s < size; s++) {
+            if (isWildcard[s]) return false;
+            if (!isBranch(s) && !isAccept(s) && ch[s] > 0x7F) return false;
+        }
+        return true;
+    }
+
+    // accepting states have no outgoing transitions
+    boolean isAccept(int s) {
+        return next1[s] == -1 && next2[s] == -1;
+    }
+
+    // branching (epsilon) states carry no character
+    boolean isBranch(int s) {
+        return ch[s] == '\0' && !isWildcard[s];
+    }
+
+    // read an FSM written by REcompile, in either the text or the binary format
+    static FSM read(InputStream in) throws IOException {
+        byte[] data = in.readAllBytes();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (data.length >= 4 && buf.getInt(0) == MAGIC) return readBinary(buf);
+        return parseText(new String(data, Charset.defaultCharset()));
+    }
+
+    // parse the text format, one "state,type,next1,next2[,pattern]" line per state
+    static FSM parseText(String text) throws IOException {
+        List<String[]> lines = new ArrayList<>();
+        // parsing fsm to find max state number
+        int maxState = -1;
+        for (String line : text.split("\r?\n")) {
+            if (line.isEmpty()) continue;
+            String[] parts = line.split(",", -1);
+            // a literal comma shows up as an empty type followed by another empty field
+            if (parts.length >= 5 && parts[1].isEmpty() && parts[2].isEmpty()) {
+                String[] fixed = new String[parts.length - 1];
+                fixed[0] = parts[0];
+                fixed[1] = ",";
+                System.arraycopy(parts, 3, fixed, 2, parts.length - 3);
+                parts = fixed;
+            }
+            if (parts.length < 4) throw new IOException("bad FSM line: " + line);
+            lines.add(parts);
+            // update maxState to largest state number found
+            maxState = Math.max(maxState, Integer.parseInt(parts[0]));
+        }
+        if (maxState < 0) throw new IOException("no FSM states");
+
+        // initialise arrays with size maxState + 1
+        char[] ch = new char[maxState + 1];
+        int[] next1 = new int[maxState + 1];
+        int[] next2 = new int[maxState + 1];
+        boolean[] isWildcard = new boolean[maxState + 1];
+        int[] pattern = new int[maxState + 1];
+        for (String[] parts : lines) {
+            int stateNum = Integer.parseInt(parts[0]);
+            if (parts[1].equals("BR")) {
+                ch[stateNum] = '\0';
+            } else if (parts[1].equals("WC")) {
+                ch[stateNum] = '.';  // Optional, kept for consistency
+                isWildcard[stateNum] = true;
+            } else if (!parts[1].isEmpty()) {
+                // handle literal character, including escaped characters like '\'
+                ch[stateNum] = parts[1].charAt(0);
+            }
+            // setting first and second next states
+            next1[stateNum] = Integer.parseInt(parts[2]);
+            next2[stateNum] = Integer.parseInt(parts[3]);
+            // accept states of a multi-pattern FSM carry their pattern number
+            if (parts.length > 4) pattern[stateNum] = Integer.parseInt(parts[4]);
+        }
+        return new FSM(ch, next1, next2, isWildcard, pattern);
+    }
+
+    // load the binary format with bulk reads straight into the state arrays
+    static FSM readBinary(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER || buf.getInt() != MAGIC) throw new IOException("not a binary FSM");
+        int version = buf.getInt();
+        if (version != VERSION) throw new IOException("unsupported binary FSM version " + version);
+        int n = buf.getInt();
+        if (n <= 0 || buf.remaining() != (long) n * 15) throw new IOException("truncated binary FSM");
+
+        int[] next1 = new int[n];
+        int[] next2 = new int[n];
+        int[] pattern = new int[n];
+        char[] ch = new char[n];
+        byte[] flags = new byte[n];
+        buf.asIntBuffer().get(next1);
+        buf.position(buf.position() + 4 * n);
+        buf.asIntBuffer().get(next2);
+        buf.position(buf.position() + 4 * n);
+        buf.asIntBuffer().get(pattern);
+        buf.position(buf.position() + 4 * n);
+        buf.asCharBuffer().get(ch);
+        buf.position(buf.position() + 2 * n);
+        buf.get(flags);
+
+        boolean[] isWildcard = new boolean[n];
+        for (int s = 0; s < n; s++) isWildcard[s] = (flags[s] & WILDCARD) != 0;
+        return new FSM(ch, next1, next2, isWildcard, pattern);
+    }
+
+    // write the binary format in one go
+    void writeBinary(OutputStream out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + size * 15);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(size);
+        buf.asIntBuffer().put(next1);
+        buf.position(buf.position() + 4 * size);
+        buf.asIntBuffer().put(next2);
+        buf.position(buf.position() + 4 * size);
+        buf.asIntBuffer().put(pattern);
+        buf.position(buf.position() + 4 * size);
+        buf.asCharBuffer().put(ch);
+        buf.position(buf.position() + 2 * size);
+        for (int s = 0; s < size; s++) buf.put(isWildcard[s] ? WILDCARD : 0);
+        out.write(buf.array());
+        out.flush();
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * FollowInputStream.java
+ *
+ * reads a file and then keeps reading whatever is appended to it, like tail -f, as a stream
+ * that never ends. it remembers its position and only ever reads new bytes. when the file is
+ * rotated (the path now names a different file) it finishes the old one and starts on the new
+ * one from the beginning; when it is truncated in place it starts again from the beginning.
+ * a partial last line left behind by either is ended with a newline so it isn't joined to the
+ * next one.
+ */
+public class FollowInputStream extends InputStream {
+    // how often to look for new data once caught up
+    private static final long POLL_MILLIS = 100;
+
+    private final Path path;
+    private FileChannel channel;
+    // identity of the open file (the inode on Unix), to notice rotation
+    private Object fileKey;
+    private long position;
+    // last byte handed out, to know whether a line was left unfinished
+    private int lastByte = '\n';
+    // a newline owed to the reader after switching files mid-line
+    private boolean pendingNewline;
+
+    public FollowInputStream(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileKey = key(path);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (true) {
+            if (pendingNewline) {
+                pendingNewline = false;
+                b[off] = '\n';
+                lastByte = '\n';
+                return 1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+                lastByte = b[off + n - 1];
+                return n;
+            }
+            // caught up: see whether the file was replaced or cut short, otherwise wait
+            if (!switched()) pause();
+        }
+    }
+
+    // bytes that can be read without waiting
+    @Override
+    public int available() throws IOException {
+        if (pendingNewline) return 1;
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, channel.size() - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // handle rotation and truncation, return true if there may be something new to read
+    private boolean switched() throws IOException {
+        long size = channel.size();
+        if (size < position) {
+            // truncated in place (e.g. copytruncate): everything in it now is new
+            position = 0;
+            endLine();
+            return true;
+        }
+        // written to between the read and now
+        if (size > position) return true;
+        Object current = key(path);
+        if (current != null && !current.equals(fileKey)) {
+            // rotated: the old file has been read to the end, so move on to the new one
+            FileChannel next;
+            try {
+                next = FileChannel.open(path, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            channel.close();
+            channel = next;
+            fileKey = current;
+            position = 0;
+            endLine();
+            return true;
+        }
+        return false;
+    }
+
+    // owe the reader a newline if the last file stopped mid-line
+    private void endLine() {
+        if (lastByte != '\n') pendingNewline = true;
+    }
+
+    // wait for the file to grow
+    private static void pause() throws IOException {
+        try {
+            Thread.sleep(POLL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while following");
+        }
+    }
+
+    // identity of the file at the path, or null if there is none right now
+    private static Object key(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.util.*;
+import javax.tools.*;
+
+/**
+ * GeneratedMatcher.java
+ *
+ * a matcher made at runtime for one DFA, instead of interpreting its table. the DFA is turned
+ * into Java source with a switch per state whose case labels are the pattern's characters as
+ * constants, so a state that is waiting for one character is a tight loop comparing against
+ * it. the source is compiled in memory with the system Java compiler and loaded as a hidden
+ * class, which can be unloaded once nothing refers to it. matchers are cached by their source,
+ * so the same pattern is only compiled once per process. without a compiler (a JRE rather
+ * than a JDK), or for a DFA too big to make into one method the JIT will still compile,
+ * there is no matcher and the interpreted engines are used.
+ */
+public abstract class GeneratedMatcher implements Engine {
+    // most case labels and branches put in the generated method; HotSpot won't JIT methods
+    // over 8000 bytes of bytecode, and each costs about seventeen
+    static final int MAX_BRANCHES = 400;
+    // matchers kept, most recently used first
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<String, GeneratedMatcher> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GeneratedMatcher> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    // numbers the generated classes, which only matters when reading a stack trace
+    private static int generated;
+
+    // the generated code holds no state, so one matcher serves every thread
+    @Override
+    public abstract boolean search(CharSequence line, int from);
+
+    // a matcher for the DFA, from the cache if it has been made before, or null if there can't be one
+    static GeneratedMatcher of(DFA dfa) {
+        String body = body(dfa);
+        if (body == null) return null;
+        synchronized (cache) {
+            GeneratedMatcher cached = cache.get(body);
+            if (cached != null) return cached;
+        }
+        GeneratedMatcher matcher = compile(body);
+        if (matcher == null) return null;
+        synchronized (cache) {
+            // another thread may have made the same one meanwhile
+            GeneratedMatcher cached = cache.putIfAbsent(body, matcher);
+            return cached != null ? cached : matcher;
+        }
+    }
+
+    // the source of the search method, or null if the DFA is too big
+    static String body(DFA dfa) {
+        StringBuilder out = new StringBuilder();
+        out.append("    @Override\n");
+        out.append("    public boolean search(CharSequence line, int from) {\n");
+        int accept = dfa.accept();
+        if (dfa.start() == accept) {
+            // the empty string matches
+            out.append("        return true;\n    }\n");
+            return out.toString();
+        }
+        if (accept == -1) {
+            out.append("        return false;\n    }\n");
+            return out.toString();
+        }
+        char[] listed = dfa.listed();
+        int branches = 0;
+        out.append("        final int n = line.length();\n");
+        out.append("        int i = from;\n");
+        out.append("        int state = ").append(dfa.start()).append(";\n");
+        out.append("        dispatch:\n");
+        out.append("        while (true) {\n");
+        out.append("            switch (state) {\n");
+        for (int s = 0; s < dfa.size(); s++) {
+            if (s == accept) continue;
+            // every character without a class of its own goes to the same state
+            int other = dfa.next(s, Character.MAX_VALUE);
+            // the characters going somewhere else, grouped by where they go
+            Map<Integer, List<Character>> targets = new TreeMap<>();
+            for (char c : listed) {
+                int t = dfa.next(s, c);
+                if (t != other) targets.computeIfAbsent(t, k -> new ArrayList<>()).add(c);
+            }
+            out.append("                case ").append(s).append(":\n");
+            out.append("                    while (true) {\n");
+            out.append("                        if (i >= n) return false;\n");
+            out.append("                        switch (line.charAt(i++)) {\n");
+            for (Map.Entry<Integer, List<Character>> e : targets.entrySet()) {
+                out.append("                            ");
+                for (char c : e.getValue()) out.append("case ").append(literal(c)).append(": ");
+                out.append(move(s, e.getKey(), accept)).append('\n');
+                branches += e.getValue().size() + 1;
+            }
+            out.append("                            default: ").append(move(s, other, accept)).append('\n');
+            out.append("                        }\n");
+            out.append("                    }\n");
+            branches += 2;
+            if (branches > MAX_BRANCHES) return null;
+        }
+        out.append("                default:\n");
+        out.append("                    throw new IllegalStateException(\"no state \" + state);\n");
+        out.append("            }\n");
+        out.append("        }\n");
+        out.append("    }\n");
+        return out.toString();
+    }
+
+    // the statement taking state s to t
+    private static String move(int s, int t, int accept) {
+        if (t == accept) return "return true;";
+        if (t == s) return "continue;";
+        return "state = " + t + "; continue dispatch;";
+    }
+
+    // a case label for c; characters that would need escaping are written as numbers
+    private static String literal(char c) {
+        if (c >= ' ' && c < 0x7F && c != '\'' && c != '\\') return "'" + c + "'";
+        return Integer.toString(c);
+    }
+
+    // compile the method into a subclass and load it, or return null if that can't be done
+    private static GeneratedMatcher compile(String body) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) return null;
+        String name;
+        synchronized (cache) {
+            name = "GeneratedMatcher" + generated++;
+        }
+        String source = "public final class " + name + " extends GeneratedMatcher {\n" + body + "}\n";
+
+        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        JavaFileObject input = new SimpleJavaFileObject(URI.create("string:///" + name + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        JavaFileManager files = new ForwardingJavaFileManager<>(compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + className + ".class"), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return classFile;
+                    }
+                };
+            }
+        };
+        // the generated class extends this one, so it compiles against the same class path
+        List<String> options = List.of("-classpath", System.getProperty("java.class.path"), "-g:none", "-proc:none");
+        Writer messages = new StringWriter();
+        boolean compiled = compiler.getTask(messages, files, null, options, null, List.of(input)).call();
+        if (!compiled) return null;
+        try {
+            // a hidden class in this package, by this class's loader; it goes once unreferenced
+            Class<?> matcher = MethodHandles.lookup().defineHiddenClass(classFile.toByteArray(), true).lookupClass();
+            return (GeneratedMatcher) matcher.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
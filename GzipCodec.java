@@ -0,0 +1,256 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * GzipCodec.java
+ *
+ * gzip, decoded with java.util.zip. a file made of several members (concatenated .gz files, or
+ * the blocks written by bgzip) can be decoded in parallel: it is cut into parts of about
+ * SEGMENT compressed bytes, each starting at something that looks like a member header. the
+ * bytes 1f 8b 08 can also turn up inside compressed data, so a part only counts as decoded
+ * once it has been read as whole members, each passing its CRC and length check, ending
+ * exactly where the next part starts. that proves where the next part starts, so everything
+ * a part decodes before it fails is right, and PipelinedInputStream carries on from there
+ * with one stream over the rest of the file.
+ */
+final class GzipCodec implements Codec {
+    // compressed bytes in each part, and how far past that to look for the next member
+    static final long SEGMENT = 1 << 20;
+    private static final long SCAN = 4 << 20;
+
+    private static final byte[] MAGIC = {0x1f, (byte) 0x8b};
+    // header flags
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    @Override
+    public byte[] magic() {
+        return MAGIC;
+    }
+
+    @Override
+    public InputStream decode(InputStream in) throws IOException {
+        return new GZIPInputStream(in, 1 << 16);
+    }
+
+    @Override
+    public Iterator<PipelinedInputStream.Part> split(Path path) throws IOException {
+        long size = Files.size(path);
+        if (size < 2 * SEGMENT) return null;
+        return new Iterator<>() {
+            private long start;
+
+            @Override
+            public boolean hasNext() {
+                return start < size;
+            }
+
+            @Override
+            public PipelinedInputStream.Part next() {
+                long from = start;
+                long end;
+                try {
+                    end = nextHeader(path, from + SEGMENT, Math.min(size, from + SEGMENT + SCAN));
+                } catch (IOException e) {
+                    // can't look ahead, so decode the rest as one part
+                    end = -1;
+                }
+                if (end < 0) end = size;
+                start = end;
+                return part(path, from, end, size);
+            }
+        };
+    }
+
+    // the part of the file from start to end
+    private PipelinedInputStream.Part part(Path path, long start, long end, long size) {
+        return new PipelinedInputStream.Part() {
+            @Override
+            public InputStream open() throws IOException {
+                InputStream range = range(path, start);
+                // the last part has no end to check, so it is read as leniently as a whole file
+                if (end == size) return decode(range);
+                return new Members(range, end - start);
+            }
+
+            @Override
+            public InputStream rest(long emitted, IOException failure) throws IOException {
+                InputStream rest = decode(range(path, start));
+                rest.skipNBytes(emitted);
+                return rest;
+            }
+        };
+    }
+
+    private static InputStream range(Path path, long start) throws IOException {
+        return new BufferedInputStream(Channels.newInputStream(FileChannel.open(path).position(start)), 1 << 16);
+    }
+
+    // position of the first thing that looks like a member header in [from, to), or -1
+    static long nextHeader(Path path, long from, long to) throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+            long position = from;
+            while (position < to) {
+                buf.clear();
+                // overlap by a header's length, so one split across reads is still seen
+                int n = channel.read(buf, position);
+                if (n < 10) return -1;
+                byte[] bytes = buf.array();
+                for (int i = 0; i + 10 <= n && position + i < to; i++) {
+                    if (isHeader(bytes, i)) return position + i;
+                }
+                position += n - 9;
+            }
+        }
+        return -1;
+    }
+
+    // return true if the 10 bytes at i could start a gzip member
+    private static boolean isHeader(byte[] b, int i) {
+        return b[i] == 0x1f && b[i + 1] == (byte) 0x8b && b[i + 2] == 8
+                // reserved flags, extra flags and operating system
+                && (b[i + 3] & 0xE0) == 0 && (b[i + 8] == 0 || b[i + 8] == 2 || b[i + 8] == 4)
+                && ((b[i + 9] & 0xFF) <= 13 || b[i + 9] == (byte) 0xFF);
+    }
+
+    // whole gzip members and nothing else, up to length bytes of the source. unlike
+    // GZIPInputStream, anything left over that isn't a valid member is an error
+    private static final class Members extends InputStream {
+        private final InputStream source;
+        private long left;
+        private final byte[] in = new byte[1 << 16];
+        private int inPos;
+        private int inLen;
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        // bytes decoded from the current member
+        private long size;
+        private boolean inMember;
+        private boolean eof;
+
+        Members(InputStream source, long length) {
+            this.source = source;
+            this.left = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (!eof) {
+                if (!inMember) {
+                    if (!startMember()) {
+                        eof = true;
+                        break;
+                    }
+                    continue;
+                }
+                int n;
+                try {
+                    n = inflater.inflate(b, off, len);
+                } catch (DataFormatException e) {
+                    throw new ZipException("corrupt gzip data: " + e.getMessage());
+                }
+                if (n > 0) {
+                    crc.update(b, off, n);
+                    size += n;
+                    return n;
+                }
+                if (inflater.finished()) {
+                    inPos = inLen - inflater.getRemaining();
+                    endMember();
+                } else if (inflater.needsInput()) {
+                    if (!refill()) throw new EOFException("gzip member cut short");
+                    inflater.setInput(in, inPos, inLen - inPos);
+                    inPos = inLen;
+                } else if (inflater.needsDictionary()) {
+                    throw new ZipException("corrupt gzip data: needs a dictionary");
+                }
+            }
+            return -1;
+        }
+
+        // read the next member's header; returns false if the source has ended instead
+        private boolean startMember() throws IOException {
+            int id1 = next();
+            if (id1 < 0) return false;
+            if (id1 != 0x1f || next() != 0x8b || next() != 8) throw new ZipException("not a gzip member");
+            int flags = next();
+            for (int i = 0; i < 6; i++) need();
+            if ((flags & FEXTRA) != 0) {
+                int length = need() | need() << 8;
+                for (int i = 0; i < length; i++) need();
+            }
+            if ((flags & FNAME) != 0) {
+                while (need() != 0) {
+                    // skip the file name
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (need() != 0) {
+                    // skip the comment
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                need();
+                need();
+            }
+            inflater.reset();
+            crc.reset();
+            size = 0;
+            inflater.setInput(in, inPos, inLen - inPos);
+            inPos = inLen;
+            inMember = true;
+            return true;
+        }
+
+        // check the trailer against what was decoded
+        private void endMember() throws IOException {
+            long crc32 = need() | need() << 8 | need() << 16 | (long) need() << 24;
+            long isize = need() | need() << 8 | need() << 16 | (long) need() << 24;
+            if (crc32 != crc.getValue() || isize != (size & 0xFFFFFFFFL)) throw new ZipException("corrupt gzip trailer");
+            inMember = false;
+        }
+
+        // the next input byte, or -1 at the end of the source
+        private int next() throws IOException {
+            if (inPos == inLen && !refill()) return -1;
+            return in[inPos++] & 0xFF;
+        }
+
+        private int need() throws IOException {
+            int b = next();
+            if (b < 0) throw new EOFException("gzip member cut short");
+            return b;
+        }
+
+        // read more of the source into the empty input buffer; false at the end of the source
+        private boolean refill() throws IOException {
+            if (left == 0) return false;
+            int n = source.read(in, 0, (int) Math.min(in.length, left));
+            if (n < 0) return false;
+            left -= n;
+            inPos = 0;
+            inLen = n;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            source.close();
+        }
+    }
+}
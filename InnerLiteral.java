@@ -0,0 +1,244 @@
+import java.util.Arrays;
+
+/**
+ * InnerLiteral.java
+ *
+ * searches for a literal every match must contain, then checks each place it occurs instead
+ * of trying every start position. the FSM splits at the literal: whatever comes before it is
+ * run backwards from the occurrence, over the reversed transitions, until it reaches the start
+ * of a possible match; whatever comes after is run forwards, anchored just past the literal,
+ * until it accepts. for patterns like ".*error 5.." that leaves a substring search and a few
+ * characters of checking per line. when the checks around many occurrences keep rescanning
+ * the same text, which could take quadratic time, the line is handed to the usual engine.
+ */
+public class InnerLiteral implements Engine, SearchStats.Source {
+    // shortest literal worth searching for
+    static final int MIN_LITERAL = 3;
+    // most reversed and forward transitions kept, in total across all states
+    private static final int MAX_ENTRIES = 1 << 20;
+    // characters the checks may scan beyond this many per character of the line before giving up
+    private static final int SLACK = 64;
+
+    private final FSM fsm;
+    private final String literal;
+    // Horspool shifts for finding it in lines that aren't Strings
+    private final int[] shift;
+    // states that move onto the literal's first state, and that follow its last one
+    private final int[] before;
+    private final int[] after;
+    // for each consuming state, the states it can move to after its character, and the states
+    // that can move to it; and whether a match can start with it
+    private final int[][] forward;
+    private final int[][] backward;
+    private final boolean[] initial;
+    // true if nothing has to come before or after the literal
+    private final boolean emptyBefore;
+    private final boolean emptyAfter;
+    // for lines where the checks would take too long
+    private final Engine fallback;
+
+    private NFA.StateSet current;
+    private NFA.StateSet next;
+    // characters the checks have scanned on this line, and how many they may
+    private long scanned;
+    private long limit;
+    // literal occurrences checked, and lines handed to the fallback
+    private long hits;
+    private long fellBack;
+
+    private InnerLiteral(FSM fsm, String literal, int[] chain, int[][] forward, int[][] backward, Engine fallback) {
+        this.fsm = fsm;
+        this.literal = literal;
+        this.shift = Prefilter.shiftTable(literal);
+        this.forward = forward;
+        this.backward = backward;
+        this.fallback = fallback;
+        int[] start = closure(fsm, 0);
+        initial = new boolean[fsm.size];
+        for (int s : start) initial[s] = true;
+        emptyBefore = initial[chain[0]];
+        before = backward[chain[0]];
+        after = forward[chain[chain.length - 1]];
+        boolean accepts = false;
+        for (int s : after) accepts |= fsm.isAccept(s);
+        emptyAfter = accepts;
+        current = new NFA.StateSet(fsm.size);
+        next = new NFA.StateSet(fsm.size);
+    }
+
+    // an engine for the FSM if it has a long enough required literal, otherwise null
+    static InnerLiteral build(FSM fsm, Engine fallback) {
+        if (fsm.patternCount > 0) return null;
+        Literals found = Literals.analyse(fsm);
+        if (found.isEmpty() || found.text[0].length() < MIN_LITERAL) return null;
+        // the longest literal, which occurs least often
+        int[] chain = found.states[0];
+        int[][] forward = new int[fsm.size][];
+        Closures closures = new Closures(fsm);
+        long total = 0;
+        for (int s = 0; s < fsm.size; s++) {
+            if (fsm.isBranch(s) || fsm.isAccept(s)) continue;
+            forward[s] = fsm.next1[s] == -1 ? new int[0] : closures.of(fsm.next1[s]);
+            total += forward[s].length;
+            if (total > MAX_ENTRIES) return null;
+        }
+        // invert the forward moves
+        int[] counts = new int[fsm.size];
+        for (int[] targets : forward) {
+            if (targets == null) continue;
+            for (int t : targets) counts[t]++;
+        }
+        int[][] backward = new int[fsm.size][];
+        for (int s = 0; s < fsm.size; s++) backward[s] = new int[counts[s]];
+        Arrays.fill(counts, 0);
+        for (int s = 0; s < fsm.size; s++) {
+            if (forward[s] == null) continue;
+            for (int t : forward[s]) backward[t][counts[t]++] = s;
+        }
+        return new InnerLiteral(fsm, found.text[0], chain, forward, backward, fallback);
+    }
+
+    // the consuming and accepting states reachable from s by epsilon transitions
+    static int[] closure(FSM fsm, int s) {
+        return new Closures(fsm).of(s);
+    }
+
+    // works out the closures of one FSM one after another in the same scratch space, so closing
+    // every state of a big FSM doesn't allocate the FSM's size for each of them
+    private static final class Closures {
+        private final FSM fsm;
+        private final NFA.StateSet seen;
+        private final int[] stack;
+        private final int[] members;
+
+        Closures(FSM fsm) {
+            this.fsm = fsm;
+            seen = new NFA.StateSet(fsm.size);
+            stack = new int[fsm.size];
+            members = new int[fsm.size];
+        }
+
+        // the consuming and accepting states reachable from s by epsilon transitions
+        int[] of(int s) {
+            seen.clear();
+            int count = 0;
+            int top = 0;
+            stack[top++] = s;
+            seen.add(s);
+            while (top > 0) {
+                int state = stack[--top];
+                if (fsm.isAccept(state) || !fsm.isBranch(state)) {
+                    members[count++] = state;
+                    continue;
+                }
+                int[] nexts = {fsm.next1[state], fsm.next2[state]};
+                for (int t : nexts) {
+                    if (t != -1 && !seen.contains(t)) {
+                        seen.add(t);
+                        stack[top++] = t;
+                    }
+                }
+            }
+            return Arrays.copyOf(members, count);
+        }
+    }
+
+    @Override
+    public boolean search(CharSequence line, int from) {
+        // the checks may scan about twice the line before it goes to the fallback
+        scanned = 0;
+        limit = 2L * (line.length() - from) + SLACK;
+        int at = indexOf(line, from);
+        while (at >= 0) {
+            hits++;
+            if (matchesAfter(line, at + literal.length()) && matchesBefore(line, from, at)) return true;
+            if (scanned > limit) {
+                fellBack++;
+                return fallback.search(line, from);
+            }
+            at = indexOf(line, at + 1);
+        }
+        return false;
+    }
+
+    // return true if what follows the literal matches, running forwards from end
+    private boolean matchesAfter(CharSequence line, int end) {
+        if (emptyAfter) return true;
+        current.clear();
+        for (int s : after) current.add(s);
+        for (int i = end; current.size > 0 && i < line.length() && scanned++ <= limit; i++) {
+            char c = line.charAt(i);
+            next.clear();
+            for (int k = 0; k < current.size; k++) {
+                int s = current.dense[k];
+                if (fsm.isAccept(s) || !(fsm.isWildcard[s] || fsm.ch[s] == c)) continue;
+                for (int t : forward[s]) {
+                    if (fsm.isAccept(t)) return true;
+                    if (!next.contains(t)) next.add(t);
+                }
+            }
+            swap();
+        }
+        return false;
+    }
+
+    // return true if what comes before the literal matches, running backwards from at to no
+    // further back than from
+    private boolean matchesBefore(CharSequence line, int from, int at) {
+        if (emptyBefore) return true;
+        current.clear();
+        for (int s : before) current.add(s);
+        for (int i = at - 1; current.size > 0 && i >= from && scanned++ <= limit; i--) {
+            char c = line.charAt(i);
+            next.clear();
+            for (int k = 0; k < current.size; k++) {
+                int s = current.dense[k];
+                if (!(fsm.isWildcard[s] || fsm.ch[s] == c)) continue;
+                if (initial[s]) return true;
+                for (int p : backward[s]) {
+                    if (!next.contains(p)) next.add(p);
+                }
+            }
+            swap();
+        }
+        return false;
+    }
+
+    private void swap() {
+        NFA.StateSet tmp = current;
+        current = next;
+        next = tmp;
+    }
+
+    // position of the first occurrence of the literal at or after from, or -1
+    private int indexOf(CharSequence line, int from) {
+        // String.indexOf is an intrinsic, hard to beat
+        if (line instanceof String) return ((String) line).indexOf(literal, from);
+
+        int last = literal.length() - 1;
+        char lastChar = literal.charAt(last);
+        int end = line.length() - literal.length();
+        int pos = from;
+        while (pos <= end) {
+            char c = line.charAt(pos + last);
+            if (c == lastChar) {
+                int j = last - 1;
+                while (j >= 0 && line.charAt(pos + j) == literal.charAt(j)) j--;
+                if (j < 0) return pos;
+            }
+            pos += shift[c & 0xFF];
+        }
+        return -1;
+    }
+
+    @Override
+    public void countWork() {
+        if (fallback instanceof SearchStats.Source) ((SearchStats.Source) fallback).countWork();
+    }
+
+    @Override
+    public void addStats(SearchStats stats) {
+        stats.addInnerLiteral(hits, fellBack);
+        if (fallback instanceof SearchStats.Source) ((SearchStats.Source) fallback).addStats(stats);
+    }
+}
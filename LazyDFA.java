@@ -0,0 +1,256 @@
+import java.util.*;
+
+/**
+ * LazyDFA.java
+ *
+ * searches with a DFA built on demand from the FSM (lazy subset construction).
+ * each DFA state is the set of character-consuming FSM states reached so far, and
+ * transitions are memoised in a table indexed by state and character class, so once
+ * the cache is warm each character costs a single table lookup. the cache has a fixed
+ * memory budget: when it fills up it is flushed and rebuilt, and if that keeps
+ * happening the search gives up and hands over to the fallback engine.
+ */
+public class LazyDFA implements Engine, SearchStats.Source {
+    private static final int UNKNOWN = -1;
+    // rough per-state bookkeeping cost on top of the table row and the state set
+    private static final int STATE_OVERHEAD = 64;
+    // a flush is "bad" if fewer than this many characters were scanned per state built
+    private static final int MIN_CHARS_PER_STATE = 10;
+    // give up on the DFA after this many bad flushes
+    private static final int MAX_BAD_FLUSHES = 3;
+
+    private final FSM fsm;
+    private final Engine fallback;
+    private final int classes;
+    private final long budget;
+
+    // transition table: table[state * classes + class] is the next state or UNKNOWN
+    private int[] table;
+    // FSM states (character-consuming only) making up each DFA state
+    private int[][] sets;
+    private boolean[] accepting;
+    private final Map<StateKey, Integer> index = new HashMap<>();
+    private int count;
+    private long used;
+    private int start = UNKNOWN;
+
+    // flush tracking
+    private int flushes;
+    private int badFlushes;
+    private long charsSinceFlush;
+    private boolean gaveUp;
+
+    // work done so far, for --stats
+    private long chars;
+    private long misses;
+    private long built;
+
+    // scratch space for computing closures
+    private final int[] mark;
+    private int generation;
+    private final int[] stack;
+    private final int[] members;
+    // set by closure() when an accepting state is reached
+    private boolean acceptSeen;
+
+    public LazyDFA(FSM fsm, long budgetBytes, Engine fallback) {
+        this.fsm = fsm;
+        this.fallback = fallback;
+        this.classes = fsm.classCount;
+        this.budget = budgetBytes;
+        this.mark = new int[fsm.size];
+        this.stack = new int[fsm.size];
+        this.members = new int[fsm.size];
+        reset(16);
+    }
+
+    @Override
+    public boolean search(CharSequence line, int from) {
+        if (gaveUp) return fallback.search(line, from);
+        charsSinceFlush += line.length() - from;
+        chars += line.length() - from;
+        if (start == UNKNOWN) {
+            int[] set = closure(null, 0);
+            start = addState(set, acceptSeen);
+        }
+        int s = start;
+        if (accepting[s]) return true;
+
+        final char[] classOf = fsm.classOf;
+        for (int i = from; i < line.length(); i++) {
+            int cls = classOf[line.charAt(i)];
+            int next = table[s * classes + cls];
+            if (next == UNKNOWN) {
+                next = computeNext(s, cls);
+                // the cache thrashed too often, rerun this line without it
+                if (gaveUp) return fallback.search(line, from);
+            }
+            s = next;
+            if (accepting[s]) return true;
+        }
+        return false;
+    }
+
+    // return true if the DFA has been abandoned in favour of the fallback engine
+    public boolean gaveUp() {
+        return gaveUp;
+    }
+
+    // number of times the state cache has been flushed
+    public int flushes() {
+        return flushes;
+    }
+
+    @Override
+    public void countWork() {
+        if (fallback instanceof SearchStats.Source) ((SearchStats.Source) fallback).countWork();
+    }
+
+    @Override
+    public void addStats(SearchStats stats) {
+        stats.addDfa(chars, misses, built, flushes, gaveUp);
+        if (fallback instanceof SearchStats.Source) ((SearchStats.Source) fallback).addStats(stats);
+    }
+
+    // build the transition out of state s for a character class and cache it if possible
+    private int computeNext(int s, int cls) {
+        misses++;
+        char c = fsm.classChar[cls];
+        int[] from = sets[s];
+        // states reached by consuming c, plus state 0 so a new match can start at the next position
+        int[] seeds = new int[from.length + 1];
+        int n = 0;
+        for (int state : from) {
+            if ((fsm.isWildcard[state] || (cls != 0 && fsm.ch[state] == c)) && fsm.next1[state] != -1) {
+                seeds[n++] = fsm.next1[state];
+            }
+        }
+        seeds[n++] = 0;
+        int[] set = closure(seeds, n);
+        boolean accept = acceptSeen;
+
+        int before = flushes;
+        int next = addState(set, accept);
+        // a flush invalidated s, so the transition can't be recorded
+        if (flushes == before) table[s * classes + cls] = next;
+        return next;
+    }
+
+    // epsilon closure of the seed states, keeping only the states that consume a character
+    private int[] closure(int[] seeds, int n) {
+        if (++generation == 0) {
+            Arrays.fill(mark, 0);
+            generation = 1;
+        }
+        acceptSeen = false;
+        int top = 0;
+        if (seeds == null) {
+            top = push(0, top);
+        } else {
+            for (int i = 0; i < n; i++) top = push(seeds[i], top);
+        }
+        int size = 0;
+        while (top > 0) {
+            int state = stack[--top];
+            if (fsm.isAccept(state)) {
+                acceptSeen = true;
+            } else if (fsm.isBranch(state)) {
+                if (fsm.next1[state] != -1) top = push(fsm.next1[state], top);
+                if (fsm.next2[state] != -1) top = push(fsm.next2[state], top);
+            } else {
+                members[size++] = state;
+            }
+        }
+        int[] set = Arrays.copyOf(members, size);
+        Arrays.sort(set);
+        return set;
+    }
+
+    // push a state onto the closure stack unless it has already been seen
+    private int push(int state, int top) {
+        if (mark[state] != generation) {
+            mark[state] = generation;
+            stack[top++] = state;
+        }
+        return top;
+    }
+
+    // look up or create the DFA state for a set of FSM states
+    private int addState(int[] set, boolean accept) {
+        StateKey key = new StateKey(set, accept);
+        Integer existing = index.get(key);
+        if (existing != null) return existing;
+
+        long cost = (long) classes * 4 + set.length * 4L + STATE_OVERHEAD;
+        if (used + cost > budget && count > 0) flush();
+
+        if (count == accepting.length) grow();
+        int s = count++;
+        built++;
+        sets[s] = set;
+        accepting[s] = accept;
+        Arrays.fill(table, s * classes, (s + 1) * classes, UNKNOWN);
+        index.put(key, s);
+        used += cost;
+        return s;
+    }
+
+    // throw away every cached state and decide whether the DFA is still worth using
+    private void flush() {
+        flushes++;
+        if (charsSinceFlush < (long) MIN_CHARS_PER_STATE * count) {
+            if (++badFlushes >= MAX_BAD_FLUSHES) gaveUp = true;
+        }
+        charsSinceFlush = 0;
+        reset(accepting.length);
+    }
+
+    // clear the cache, keeping the allocated arrays where possible
+    private void reset(int capacity) {
+        index.clear();
+        count = 0;
+        used = 0;
+        start = UNKNOWN;
+        if (table == null || accepting.length != capacity) {
+            table = new int[capacity * classes];
+            sets = new int[capacity][];
+            accepting = new boolean[capacity];
+        } else {
+            Arrays.fill(sets, null);
+        }
+    }
+
+    // double the number of state slots, without going past what the budget could ever hold
+    private void grow() {
+        long limit = budget / ((long) classes * 4 + STATE_OVERHEAD) + 1;
+        int capacity = (int) Math.min(accepting.length * 2L, Math.max(limit, accepting.length + 1L));
+        table = Arrays.copyOf(table, capacity * classes);
+        sets = Arrays.copyOf(sets, capacity);
+        accepting = Arrays.copyOf(accepting, capacity);
+    }
+
+    // hash key for a DFA state
+    private static final class StateKey {
+        final int[] set;
+        final boolean accept;
+        final int hash;
+
+        StateKey(int[] set, boolean accept) {
+            this.set = set;
+            this.accept = accept;
+            this.hash = Arrays.hashCode(set) * 31 + (accept ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StateKey)) return false;
+            StateKey k = (StateKey) o;
+            return accept == k.accept && Arrays.equals(set, k.set);
+        }
+    }
+}
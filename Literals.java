@@ -0,0 +1,210 @@
+import java.util.*;
+
+/**
+ * Literals.java
+ *
+ * works out which literal strings every match of an FSM must contain. a literal state is
+ * required if every path from state 0 to an accepting state goes through it (it dominates
+ * acceptance), and consecutive required literals form a chain when nothing else can be
+ * consumed between them. branches that let a path bypass a literal (|, *, ?) break chains.
+ */
+public class Literals {
+    // required literal strings, longest first
+    final String[] text;
+    // FSM states spelling out each literal, in the same order
+    final int[][] states;
+    // literal every match starts with, or null if there is none
+    final String prefix;
+
+    private Literals(String[] text, int[][] states, String prefix) {
+        this.text = text;
+        this.states = states;
+        this.prefix = prefix;
+    }
+
+    // return true if at least one literal is required
+    boolean isEmpty() {
+        return text.length == 0;
+    }
+
+    // analyse an FSM for required literals
+    static Literals analyse(FSM fsm) {
+        int n = fsm.size;
+        int sink = n; // virtual node every accepting state leads to
+        int[] required = dominators(fsm, sink);
+
+        // keep the character-consuming dominators, in path order
+        List<Integer> consuming = new ArrayList<>();
+        for (int s : required) {
+            if (s != sink && !fsm.isBranch(s) && !fsm.isAccept(s)) consuming.add(s);
+        }
+
+        int[] mark = new int[n];
+        int[] stack = new int[n];
+        int[] gen = {0};
+        List<int[]> chains = new ArrayList<>();
+        List<Integer> chain = new ArrayList<>();
+        int prefixChain = -1;
+        for (int k = 0; k < consuming.size(); k++) {
+            int s = consuming.get(k);
+            if (fsm.isWildcard[s]) {
+                // a wildcard ends the current chain
+                flush(chain, chains);
+                continue;
+            }
+            if (chain.isEmpty() && k == 0 && onlyEpsilon(fsm, 0, s, mark, stack, gen)) {
+                // the first thing every match consumes, so the chain is also a prefix
+                prefixChain = chains.size();
+            }
+            chain.add(s);
+            boolean adjacent = k + 1 < consuming.size()
+                    && !fsm.isWildcard[consuming.get(k + 1)]
+                    && fsm.next1[s] != -1
+                    && onlyEpsilon(fsm, fsm.next1[s], consuming.get(k + 1), mark, stack, gen);
+            if (!adjacent) flush(chain, chains);
+        }
+        flush(chain, chains);
+
+        String prefix = null;
+        if (prefixChain >= 0) prefix = spell(fsm, chains.get(prefixChain));
+
+        // longest literals first, they reject the most lines
+        chains.sort((a, b) -> b.length - a.length);
+        String[] text = new String[chains.size()];
+        for (int i = 0; i < text.length; i++) text[i] = spell(fsm, chains.get(i));
+        return new Literals(text, chains.toArray(new int[0][]), prefix);
+    }
+
+    // end the current chain, recording it if it is not empty
+    private static void flush(List<Integer> chain, List<int[]> chains) {
+        if (chain.isEmpty()) return;
+        int[] states = new int[chain.size()];
+        for (int i = 0; i < states.length; i++) states[i] = chain.get(i);
+        chains.add(states);
+        chain.clear();
+    }
+
+    // the characters consumed by a chain of literal states
+    private static String spell(FSM fsm, int[] states) {
+        StringBuilder sb = new StringBuilder(states.length);
+        for (int s : states) sb.append(fsm.ch[s]);
+        return sb.toString();
+    }
+
+    // return true if, starting at from, the only way forward is through epsilon moves to target
+    private static boolean onlyEpsilon(FSM fsm, int from, int target, int[] mark, int[] stack, int[] gen) {
+        if (from == target) return true;
+        int g = ++gen[0];
+        int top = 0;
+        stack[top++] = from;
+        mark[from] = g;
+        while (top > 0) {
+            int s = stack[--top];
+            if (s == target) continue;
+            // anything else that consumes a character, or accepts, sits between from and target
+            if (fsm.isAccept(s) || !fsm.isBranch(s)) return false;
+            int[] nexts = {fsm.next1[s], fsm.next2[s]};
+            for (int t : nexts) {
+                if (t != -1 && mark[t] != g) {
+                    mark[t] = g;
+                    stack[top++] = t;
+                }
+            }
+        }
+        return true;
+    }
+
+    // states dominating the virtual sink, ordered from state 0 towards the sink
+    private static int[] dominators(FSM fsm, int sink) {
+        int n = fsm.size + 1;
+        // depth-first postorder from state 0
+        int[] order = new int[n];
+        int[] post = new int[n];
+        Arrays.fill(post, -1);
+        int[] stack = new int[n];
+        int[] edge = new int[n];
+        boolean[] seen = new boolean[n];
+        int count = 0;
+        int top = 0;
+        stack[top++] = 0;
+        seen[0] = true;
+        while (top > 0) {
+            int s = stack[top - 1];
+            int[] succ = successors(fsm, s, sink);
+            if (edge[s] < succ.length) {
+                int t = succ[edge[s]++];
+                if (!seen[t]) {
+                    seen[t] = true;
+                    stack[top++] = t;
+                }
+            } else {
+                top--;
+                post[s] = count;
+                order[count++] = s;
+            }
+        }
+        if (post[sink] == -1) return new int[0];
+
+        // predecessor lists over reachable states
+        List<List<Integer>> preds = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) preds.add(new ArrayList<>());
+        for (int i = 0; i < count; i++) {
+            int s = order[i];
+            for (int t : successors(fsm, s, sink)) preds.get(t).add(s);
+        }
+
+        // iterative dominator computation (Cooper, Harvey and Kennedy)
+        int[] idom = new int[n];
+        Arrays.fill(idom, -1);
+        idom[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = count - 1; i >= 0; i--) {
+                int s = order[i];
+                if (s == 0) continue;
+                int best = -1;
+                for (int p : preds.get(s)) {
+                    if (idom[p] == -1) continue;
+                    best = best == -1 ? p : intersect(p, best, idom, post);
+                }
+                if (best != -1 && idom[s] != best) {
+                    idom[s] = best;
+                    changed = true;
+                }
+            }
+        }
+
+        // walk up from the sink and reverse
+        List<Integer> chain = new ArrayList<>();
+        for (int s = sink; ; s = idom[s]) {
+            chain.add(s);
+            if (s == 0) break;
+        }
+        int[] result = new int[chain.size()];
+        for (int i = 0; i < result.length; i++) result[i] = chain.get(result.length - 1 - i);
+        return result;
+    }
+
+    // nearest common dominator of two states
+    private static int intersect(int a, int b, int[] idom, int[] post) {
+        while (a != b) {
+            while (post[a] < post[b]) a = idom[a];
+            while (post[b] < post[a]) b = idom[b];
+        }
+        return a;
+    }
+
+    // states that can follow s (accepting states lead to the virtual sink)
+    private static int[] successors(FSM fsm, int s, int sink) {
+        if (s == sink) return new int[0];
+        if (fsm.isAccept(s)) return new int[] {sink};
+        if (fsm.isBranch(s)) {
+            int n1 = fsm.next1[s];
+            int n2 = fsm.next2[s];
+            if (n1 != -1 && n2 != -1 && n1 != n2) return new int[] {n1, n2};
+            return new int[] {n1 != -1 ? n1 : n2};
+        }
+        return fsm.next1[s] != -1 ? new int[] {fsm.next1[s]} : new int[0];
+    }
+}
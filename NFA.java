@@ -0,0 +1,230 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * NFA.java
+ *
+ * simulates the FSM directly, keeping the current and next sets of states in two
+ * preallocated sparse sets. everything is sized once from the number of states and
+ * reused for every line and character, so matching does not allocate. when it fits in
+ * a budget, the epsilon closure of every state a transition can enter is worked out up
+ * front, so search adds a ready-made list of states instead of walking the branches.
+ */
+public class NFA implements Engine, SearchStats.Source {
+    // most closure entries precomputed, in total across all states
+    private static final int MAX_CLOSURE_ENTRIES = 1 << 20;
+
+    private final FSM fsm;
+    // states active before and after the current character
+    private StateSet current;
+    private StateSet next;
+    // explicit stack for following epsilon transitions
+    private final int[] stack;
+    // closure[s]: the consuming and accepting states reachable from s by epsilon transitions,
+    // for the start and every transition target, or null if that would take too much memory
+    private final int[][] closure;
+
+    // work done so far, kept only once countWork() is called since it costs in the inner loop
+    private boolean counting;
+    private long steps;
+    private long active;
+    private int maxActive;
+    private long epsilons;
+
+    public NFA(FSM fsm) {
+        this.fsm = fsm;
+        this.current = new StateSet(fsm.size);
+        this.next = new StateSet(fsm.size);
+        this.stack = new int[fsm.size];
+        this.closure = precompute();
+    }
+
+    // work out the closures of the states that searching starts from or moves into
+    private int[][] precompute() {
+        int[][] lists = new int[fsm.size][];
+        StateSet set = new StateSet(fsm.size);
+        int[] members = new int[fsm.size];
+        long total = 0;
+        // s == -1 stands for the start state, re-entered at every position
+        for (int s = -1; s < fsm.size; s++) {
+            int target = 0;
+            if (s >= 0) target = fsm.isBranch(s) || fsm.isAccept(s) ? -1 : fsm.next1[s];
+            if (target == -1 || lists[target] != null) continue;
+
+            set.clear();
+            set.add(target);
+            int count = 0;
+            int top = 0;
+            stack[top++] = target;
+            while (top > 0) {
+                int state = stack[--top];
+                if (fsm.isAccept(state) || !fsm.isBranch(state)) {
+                    members[count++] = state;
+                    continue;
+                }
+                int n1 = fsm.next1[state];
+                int n2 = fsm.next2[state];
+                if (n1 != -1 && !set.contains(n1)) {
+                    set.add(n1);
+                    stack[top++] = n1;
+                }
+                if (n2 != -1 && !set.contains(n2)) {
+                    set.add(n2);
+                    stack[top++] = n2;
+                }
+            }
+            total += count;
+            if (total > MAX_CLOSURE_ENTRIES) return null;
+            lists[target] = Arrays.copyOf(members, count);
+        }
+        return lists;
+    }
+
+    @Override
+    public boolean search(CharSequence line, int from) {
+        final char[] ch = fsm.ch;
+        final int[] next1 = fsm.next1;
+        final boolean[] isWildcard = fsm.isWildcard;
+
+        current.clear();
+        if (addClosure(current, 0)) return true;
+
+        for (int i = from; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (counting) {
+                steps++;
+                active += current.size;
+                if (current.size > maxActive) maxActive = current.size;
+            }
+            next.clear();
+            // move every state that consumes this character
+            for (int k = 0; k < current.size; k++) {
+                int state = current.dense[k];
+                if (fsm.isBranch(state)) continue;
+                if ((isWildcard[state] || ch[state] == c) && next1[state] != -1) {
+                    if (addClosure(next, next1[state])) return true;
+                }
+            }
+            // add start state for new match possibility
+            if (addClosure(next, 0)) return true;
+
+            // swap the sets instead of allocating new ones
+            StateSet tmp = current;
+            current = next;
+            next = tmp;
+        }
+        return false;
+    }
+
+    // run over the whole line, recording the pattern number of every accepting state reached
+    public void collect(CharSequence line, int from, BitSet found) {
+        final char[] ch = fsm.ch;
+        final int[] next1 = fsm.next1;
+        final boolean[] isWildcard = fsm.isWildcard;
+
+        current.clear();
+        addClosure(current, 0, found);
+        for (int i = from; i < line.length(); i++) {
+            char c = line.charAt(i);
+            next.clear();
+            for (int k = 0; k < current.size; k++) {
+                int state = current.dense[k];
+                if (fsm.isBranch(state)) continue;
+                if ((isWildcard[state] || ch[state] == c) && next1[state] != -1) {
+                    addClosure(next, next1[state], found);
+                }
+            }
+            addClosure(next, 0, found);
+            StateSet tmp = current;
+            current = next;
+            next = tmp;
+        }
+    }
+
+    // add a state and everything reachable from it by epsilon transitions, return true on reaching an accepting state
+    private boolean addClosure(StateSet set, int start) {
+        return addClosure(set, start, null);
+    }
+
+    // as above, but when found is given record accepting states in it and keep going
+    private boolean addClosure(StateSet set, int start, BitSet found) {
+        if (set.contains(start)) return false;
+        set.add(start);
+        if (closure != null) {
+            if (counting) epsilons += closure[start].length;
+            // the start state stays in the set so the same closure isn't added twice
+            for (int state : closure[start]) {
+                if (state != start) {
+                    if (set.contains(state)) continue;
+                    set.add(state);
+                }
+                if (fsm.isAccept(state)) {
+                    if (found == null) return true;
+                    found.set(fsm.pattern[state]);
+                }
+            }
+            return false;
+        }
+        int top = 0;
+        stack[top++] = start;
+        while (top > 0) {
+            int state = stack[--top];
+            if (fsm.isAccept(state)) {
+                if (found == null) return true;
+                found.set(fsm.pattern[state]);
+                continue;
+            }
+            if (fsm.isBranch(state)) {
+                int n1 = fsm.next1[state];
+                int n2 = fsm.next2[state];
+                if (n1 != -1 && !set.contains(n1)) {
+                    set.add(n1);
+                    stack[top++] = n1;
+                    if (counting) epsilons++;
+                }
+                if (n2 != -1 && !set.contains(n2)) {
+                    set.add(n2);
+                    stack[top++] = n2;
+                    if (counting) epsilons++;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void countWork() {
+        counting = true;
+    }
+
+    @Override
+    public void addStats(SearchStats stats) {
+        stats.addNfa(steps, active, maxActive, epsilons);
+    }
+
+    // sparse set of states: constant time add, membership test and clear
+    static final class StateSet {
+        final int[] dense;
+        final int[] sparse;
+        int size;
+
+        StateSet(int capacity) {
+            dense = new int[capacity];
+            sparse = new int[capacity];
+        }
+
+        boolean contains(int state) {
+            int i = sparse[state];
+            return i < size && dense[i] == state;
+        }
+
+        void add(int state) {
+            sparse[state] = size;
+            dense[size++] = state;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import java.util.*;
+
+/**
+ * Optimiser.java
+ *
+ * shrinks an FSM without changing which lines it matches. Thompson's construction leaves
+ * lots of branch states that only pass control along (the NOP fragments, the end states
+ * of '?' and '|', the wrapper state 0), and every one is an extra epsilon hop per character
+ * during search. this pass
+ *   - drops states that can never reach an accept state, and the transitions into them,
+ *   - short-circuits branches left with a single target, so transitions skip straight past them,
+ *   - merges accept states with the same pattern number,
+ *   - keeps only what is reachable from the start, renumbered densely with the start as state 0.
+ */
+public class Optimiser {
+    private final FSM fsm;
+    private final int n;
+    // true if an accept state can be reached from the state
+    private final boolean[] live;
+    // where a transition into the state really goes, or -1 if the state is kept as it is
+    private final int[] forward;
+    // the accept state kept for each pattern number
+    private final int[] acceptOf;
+
+    private Optimiser(FSM fsm) {
+        this.fsm = fsm;
+        this.n = fsm.size;
+        this.live = new boolean[n];
+        this.forward = new int[n];
+        this.acceptOf = new int[fsm.patternCount + 1];
+    }
+
+    // return an equivalent FSM with the redundant states removed
+    public static FSM optimise(FSM fsm) {
+        return new Optimiser(fsm).run();
+    }
+
+    private FSM run() {
+        findLive();
+        if (!live[0]) return never();
+
+        Arrays.fill(forward, -1);
+        Arrays.fill(acceptOf, -1);
+        for (int s = 0; s < n; s++) {
+            if (live[s] && fsm.isAccept(s) && acceptOf[fsm.pattern[s]] == -1) acceptOf[fsm.pattern[s]] = s;
+        }
+        for (int s = 0; s < n; s++) {
+            if (live[s] && fsm.isAccept(s)) {
+                int keep = acceptOf[fsm.pattern[s]];
+                if (keep != s) forward[s] = keep;
+            }
+        }
+
+        // a branch whose live targets come down to one can be skipped. skipping one branch can
+        // make another see the same state down both sides, so repeat until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int s = 0; s < n; s++) {
+                if (!live[s] || forward[s] != -1 || !fsm.isBranch(s) || fsm.isAccept(s)) continue;
+                int[] targets = branchTargets(s);
+                if (targets.length == 1) {
+                    forward[s] = targets[0];
+                    changed = true;
+                }
+            }
+        }
+        return renumber();
+    }
+
+    // mark the states that can reach an accept state, working backwards from the accept states
+    private void findLive() {
+        // reverse edges as linked lists: head[t] is the first edge into t
+        int[] head = new int[n];
+        int[] from = new int[2 * n];
+        int[] link = new int[2 * n];
+        Arrays.fill(head, -1);
+        int edges = 0;
+        for (int s = 0; s < n; s++) {
+            if (fsm.isAccept(s)) continue;
+            int n1 = fsm.next1[s];
+            int n2 = fsm.isBranch(s) ? fsm.next2[s] : -1;
+            if (n1 >= 0 && n1 < n) {
+                from[edges] = s;
+                link[edges] = head[n1];
+                head[n1] = edges++;
+            }
+            if (n2 >= 0 && n2 < n && n2 != n1) {
+                from[edges] = s;
+                link[edges] = head[n2];
+                head[n2] = edges++;
+            }
+        }
+
+        int[] stack = new int[n];
+        int top = 0;
+        for (int s = 0; s < n; s++) {
+            if (fsm.isAccept(s)) {
+                live[s] = true;
+                stack[top++] = s;
+            }
+        }
+        while (top > 0) {
+            int t = stack[--top];
+            for (int e = head[t]; e != -1; e = link[e]) {
+                if (!live[from[e]]) {
+                    live[from[e]] = true;
+                    stack[top++] = from[e];
+                }
+            }
+        }
+    }
+
+    // the distinct live states a branch leads to once forwarded states are skipped, ignoring loops to itself
+    private int[] branchTargets(int s) {
+        int a = target(fsm.next1[s]);
+        int b = target(fsm.next2[s]);
+        if (a == s) a = -1;
+        if (b == s) b = -1;
+        if (a == b) b = -1;
+        if (a == -1) return b == -1 ? new int[0] : new int[] {b};
+        return b == -1 ? new int[] {a} : new int[] {a, b};
+    }
+
+    // where a transition to t ends up, or -1 if t is missing or dead
+    private int target(int t) {
+        if (t < 0 || t >= n || !live[t]) return -1;
+        // forwarding chains can't loop: each step leads closer to an accept state
+        int end = t;
+        for (int steps = 0; forward[end] != -1 && steps <= n; steps++) end = forward[end];
+        // point the whole chain at its end, so long chains (the end states of a big
+        // alternation) are only walked once
+        while (forward[t] != -1 && forward[t] != end) {
+            int next = forward[t];
+            forward[t] = end;
+            t = next;
+        }
+        return end;
+    }
+
+    // copy the states reachable from the start into a new FSM, numbered in depth-first order
+    private FSM renumber() {
+        int[] id = new int[n];
+        Arrays.fill(id, -1);
+        int[] order = new int[n];
+        int count = 0;
+        int[] stack = new int[2 * n + 1];
+        int top = 0;
+        stack[top++] = target(0);
+        while (top > 0) {
+            int s = stack[--top];
+            if (id[s] != -1) continue;
+            id[s] = count;
+            order[count++] = s;
+            if (fsm.isAccept(s)) continue;
+            if (fsm.isBranch(s)) {
+                int[] targets = branchTargets(s);
+                // push the second target first so the first is numbered next
+                for (int k = targets.length - 1; k >= 0; k--) stack[top++] = targets[k];
+            } else {
+                stack[top++] = target(fsm.next1[s]);
+            }
+        }
+
+        char[] ch = new char[count];
+        int[] next1 = new int[count];
+        int[] next2 = new int[count];
+        boolean[] isWildcard = new boolean[count];
+        int[] pattern = new int[count];
+        for (int i = 0; i < count; i++) {
+            int s = order[i];
+            if (fsm.isAccept(s)) {
+                next1[i] = -1;
+                next2[i] = -1;
+                pattern[i] = fsm.pattern[s];
+            } else if (fsm.isBranch(s)) {
+                int[] targets = branchTargets(s);
+                next1[i] = id[targets[0]];
+                next2[i] = id[targets[1]];
+            } else {
+                ch[i] = fsm.ch[s];
+                isWildcard[i] = fsm.isWildcard[s];
+                next1[i] = id[target(fsm.next1[s])];
+                next2[i] = next1[i];
+            }
+        }
+        return new FSM(ch, next1, next2, isWildcard, pattern);
+    }
+
+    // an FSM that matches nothing: a single branch looping to itself
+    private static FSM never() {
+        return new FSM(new char[1], new int[] {0}, new int[] {0}, new boolean[1], new int[1]);
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.*;
+
+/**
+ * OutputMode.java
+ *
+ * what REsearch writes about the lines that match. by default it is the lines themselves; it can
+ * instead be the number of them in each file (-c), the name of each file with one (-l), or
+ * nothing but the exit status (-q). a file is only searched until the answer is known: up to its
+ * first match for -l and -q, or its first max for -m. with -q, the first match anywhere ends the
+ * whole search.
+ */
+final class OutputMode {
+    enum Kind { LINES, COUNT, FILES, QUIET }
+
+    // what the text read from standard input is called with -l
+    static final String STDIN_NAME = "(standard input)";
+
+    final Kind kind;
+    // most matching lines looked for in each file
+    final long max;
+    // set once any file has a match
+    private volatile boolean found;
+
+    OutputMode(Kind kind, long max) {
+        this.kind = kind;
+        this.max = max;
+    }
+
+    // how many matching lines to find in a file before it can stop
+    long limit() {
+        return kind == Kind.FILES || kind == Kind.QUIET ? Math.min(max, 1) : max;
+    }
+
+    // return true if the matching lines themselves are written
+    boolean printsLines() {
+        return kind == Kind.LINES;
+    }
+
+    // return true if there is nothing left to search for: -q has seen a match
+    boolean stopped() {
+        return kind == Kind.QUIET && found;
+    }
+
+    // return true if any file had a match
+    boolean found() {
+        return found;
+    }
+
+    // method to write what follows a file's search: its count, or its name if it matched. label is
+    // what goes before each line from the file, empty when there is only one
+    void finish(String name, String label, long matched, OutputStream out) throws IOException {
+        if (matched > 0) found = true;
+        if (kind == Kind.COUNT) {
+            out.write((label + matched + "\n").getBytes());
+        } else if (kind == Kind.FILES && matched > 0) {
+            out.write((name + "\n").getBytes());
+        }
+    }
+}
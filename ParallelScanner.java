@@ -0,0 +1,122 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * ParallelScanner.java
+ *
+ * searches one large file on several cores. the file is split into byte ranges that start
+ * and end on line boundaries, and the ranges are scanned concurrently on a ForkJoinPool,
+ * each worker thread with its own engine over the shared FSM. results are written in file
+ * order from a bounded window of in-flight ranges, so memory use does not grow with the file.
+ */
+public class ParallelScanner {
+    // target size of each range handed to a worker
+    private static final long SEGMENT = 64L << 20;
+    // ranges in flight per thread, bounds the buffered output
+    private static final int WINDOW_PER_THREAD = 2;
+
+    private final int threads;
+    private final ThreadLocal<Engine> engines;
+    private final Prefilter prefilter;
+    private final OutputStream out;
+    // where each range's counts go, or null
+    private SearchStats stats;
+    // write the matching lines, or only count them
+    private boolean printLines = true;
+    private final LongAdder matched = new LongAdder();
+
+    public ParallelScanner(int threads, Supplier<Engine> engineFactory, Prefilter prefilter, OutputStream out) {
+        this.threads = threads;
+        this.engines = ThreadLocal.withInitial(engineFactory);
+        this.prefilter = prefilter;
+        this.out = out;
+    }
+
+    // count what each range scans into stats
+    public void setStats(SearchStats stats) {
+        this.stats = stats;
+    }
+
+    // write the matching lines, or only count them
+    public void setPrintLines(boolean print) {
+        this.printLines = print;
+    }
+
+    // number of matching lines found so far
+    public long matched() {
+        return matched.sum();
+    }
+
+    // search a file, writing matching lines to the output in file order
+    public void scanFile(Path path) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ArrayDeque<Future<byte[]>> window = new ArrayDeque<>();
+            long start = 0;
+            while (start < size) {
+                long end = lineBoundary(channel, Math.min(start + SEGMENT, size), size);
+                final long from = start;
+                final long to = end;
+                window.add(pool.submit(() -> scanRange(channel, from, to)));
+                // keep the output in order, and at most a window's worth of ranges buffered
+                if (window.size() >= threads * WINDOW_PER_THREAD) out.write(take(window.poll()));
+                start = end;
+            }
+            while (!window.isEmpty()) out.write(take(window.poll()));
+            out.flush();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // scan one line-aligned range on a worker thread and return its matching lines
+    private byte[] scanRange(FileChannel channel, long from, long to) throws IOException {
+        if (to - from > Integer.MAX_VALUE) throw new IOException("line longer than 2 GB at byte " + from);
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        ByteArrayOutputStream matches = new ByteArrayOutputStream();
+        ByteScanner scanner = new ByteScanner(engines.get(), prefilter, matches);
+        scanner.setPrintLines(printLines);
+        scanner.scan(buf, 0, (int) (to - from), true);
+        scanner.flush();
+        matched.add(scanner.matched());
+        if (stats != null) scanner.addStats(stats);
+        return matches.toByteArray();
+    }
+
+    // position just after the first newline at or after pos, or the end of the file
+    private static long lineBoundary(FileChannel channel, long pos, long size) throws IOException {
+        if (pos >= size) return size;
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        while (pos < size) {
+            probe.clear();
+            int n = channel.read(probe, pos);
+            if (n <= 0) break;
+            for (int i = 0; i < n; i++) {
+                if (probe.get(i) == '\n') return pos + i + 1;
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    // wait for a range to finish, unwrapping I/O errors
+    private static byte[] take(Future<byte[]> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("search interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.*;
+
+/**
+ * PatternSet.java
+ *
+ * reports which patterns of a combined FSM (REcompile with several regexps) match each line.
+ * REcompile fans out from state 0 to every pattern and tags each accept state with its pattern
+ * number. alternatives in that fan-out which are plain literal strings are taken out of the FSM
+ * and found with Aho-Corasick instead; whatever is left (the residual FSM) is searched with a
+ * normal engine, and only on lines it matches is it run again in full to see which patterns hit.
+ */
+public class PatternSet {
+    // largest Aho-Corasick table built, in entries
+    private static final long MAX_TABLE = 1L << 24;
+
+    // literal alternatives, or null if there are none
+    private final AhoCorasick literals;
+    // FSM for everything that isn't a plain literal, or null if nothing is left
+    private final FSM residual;
+
+    private PatternSet(AhoCorasick literals, FSM residual) {
+        this.literals = literals;
+        this.residual = residual;
+    }
+
+    // the FSM still to be searched with an engine, or null
+    FSM residual() {
+        return residual;
+    }
+
+    // a per-thread matcher, given an engine over the residual FSM (or null)
+    Matcher matcher(Engine residualEngine) {
+        return new Matcher(residualEngine);
+    }
+
+    // split a combined FSM into literal alternatives and the residual FSM
+    static PatternSet build(FSM fsm) {
+        int n = fsm.size;
+        int[] indegree = new int[n];
+        for (int s = 0; s < n; s++) {
+            if (fsm.isAccept(s)) continue;
+            if (fsm.next1[s] != -1) indegree[fsm.next1[s]]++;
+            if (fsm.isBranch(s) && fsm.next2[s] != -1 && fsm.next2[s] != fsm.next1[s]) indegree[fsm.next2[s]]++;
+        }
+
+        List<String> words = new ArrayList<>();
+        List<Integer> tags = new ArrayList<>();
+        // (owner, leaf) edges to cut from the residual FSM
+        List<int[]> cuts = new ArrayList<>();
+        boolean complexLeft = false;
+
+        // walk the fan-out: branch states that can only be reached from the one above them
+        Deque<int[]> stack = new ArrayDeque<>();
+        stack.push(new int[] {0, -1});
+        while (!stack.isEmpty()) {
+            int[] item = stack.pop();
+            int s = item[0];
+            int owner = item[1];
+            if (fsm.isBranch(s) && !fsm.isAccept(s) && indegree[s] <= 1) {
+                int n1 = fsm.next1[s];
+                int n2 = fsm.next2[s];
+                if (n2 != -1 && n2 != n1) stack.push(new int[] {n2, s});
+                if (n1 != -1) stack.push(new int[] {n1, s});
+                continue;
+            }
+            // a leaf of the fan-out: is everything from here on a single literal string?
+            StringBuilder word = new StringBuilder();
+            int tag = literalPath(fsm, s, word);
+            if (tag > 0 && word.length() > 0 && owner != -1) {
+                words.add(word.toString());
+                tags.add(tag);
+                cuts.add(new int[] {owner, s});
+            } else {
+                complexLeft = true;
+            }
+        }
+
+        // the Aho-Corasick table has a row per trie node and a column per distinct character
+        long chars = 0;
+        BitSet distinct = new BitSet();
+        for (String w : words) {
+            chars += w.length();
+            for (int i = 0; i < w.length(); i++) distinct.set(w.charAt(i));
+        }
+        if ((chars + 1) * (distinct.cardinality() + 1) > MAX_TABLE) {
+            // too big, leave the literals to the FSM
+            words.clear();
+            complexLeft = true;
+        }
+
+        AhoCorasick literals = words.isEmpty() ? null : new AhoCorasick(words, tags);
+        FSM residual = null;
+        if (complexLeft) residual = words.isEmpty() ? fsm : cut(fsm, cuts);
+        return new PatternSet(literals, residual);
+    }
+
+    // follow a path with no choices from s, appending the literals; return the accept tag or 0 if it isn't one
+    private static int literalPath(FSM fsm, int s, StringBuilder word) {
+        for (int steps = 0; steps <= fsm.size && s != -1; steps++) {
+            if (fsm.isAccept(s)) return fsm.pattern[s];
+            if (fsm.isWildcard[s]) return 0;
+            if (fsm.isBranch(s)) {
+                int n1 = fsm.next1[s];
+                int n2 = fsm.next2[s];
+                if (n1 != -1 && n2 != -1 && n1 != n2) return 0;
+                s = n1 != -1 ? n1 : n2;
+            } else {
+                word.append(fsm.ch[s]);
+                s = fsm.next1[s];
+            }
+        }
+        return 0;
+    }
+
+    // copy of the FSM with the given edges sent to a dead state instead
+    private static FSM cut(FSM fsm, List<int[]> cuts) {
+        int n = fsm.size;
+        int dead = n;
+        char[] ch = Arrays.copyOf(fsm.ch, n + 1);
+        int[] next1 = Arrays.copyOf(fsm.next1, n + 1);
+        int[] next2 = Arrays.copyOf(fsm.next2, n + 1);
+        boolean[] isWildcard = Arrays.copyOf(fsm.isWildcard, n + 1);
+        int[] pattern = Arrays.copyOf(fsm.pattern, n + 1);
+        // the dead state branches only to itself, so it never consumes or accepts
+        next1[dead] = dead;
+        next2[dead] = dead;
+        for (int[] c : cuts) {
+            if (next1[c[0]] == c[1]) next1[c[0]] = dead;
+            if (next2[c[0]] == c[1]) next2[c[0]] = dead;
+        }
+        return new FSM(ch, next1, next2, isWildcard, pattern);
+    }
+
+    // finds the patterns matching a line; holds per-thread state
+    final class Matcher implements Engine, SearchStats.Source {
+        private final Engine engine;
+        private final NFA collector;
+        private final BitSet found = new BitSet();
+
+        Matcher(Engine engine) {
+            this.engine = engine;
+            this.collector = residual == null ? null : new NFA(residual);
+        }
+
+        @Override
+        public boolean search(CharSequence line, int from) {
+            found.clear();
+            if (literals != null) literals.collect(line, from, found);
+            // the engine only says whether something matched, the NFA then finds which patterns did
+            if (engine != null && engine.search(line, from)) collector.collect(line, from, found);
+            found.clear(0);
+            return !found.isEmpty();
+        }
+
+        @Override
+        public void countWork() {
+            if (engine instanceof SearchStats.Source) ((SearchStats.Source) engine).countWork();
+            if (collector != null) collector.countWork();
+        }
+
+        @Override
+        public void addStats(SearchStats stats) {
+            if (engine instanceof SearchStats.Source) ((SearchStats.Source) engine).addStats(stats);
+            if (collector != null) collector.addStats(stats);
+        }
+
+        // pattern numbers matched by the last line searched, e.g. "1,3"
+        String matched() {
+            StringBuilder sb = new StringBuilder();
+            for (int p = found.nextSetBit(0); p >= 0; p = found.nextSetBit(p + 1)) {
+                if (sb.length() > 0) sb.append(',');
+                sb.append(p);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * PipelinedInputStream.java
+ *
+ * reads a stream on other threads, so that decompressing the text and searching it happen at
+ * the same time. producer threads fill reusable chunks and queue them; reading takes them off
+ * the queue in order and hands each chunk back once it has been read. the input can be one
+ * stream, decoded on a single producer thread, or a sequence of parts that can be decoded
+ * independently (the members of a gzip file), decoded several at once. a part that turns out
+ * not to decode on its own is read again from where it had got to, and the parts after it are
+ * dropped in favour of one stream.
+ */
+final class PipelinedInputStream extends InputStream {
+    // size of each chunk, and most chunks a part may have queued before its producer waits
+    static final int CHUNK = 256 << 10;
+    static final int QUEUED = 32;
+
+    // a piece of the input that can be decoded by itself
+    interface Part {
+        InputStream open() throws IOException;
+
+        // the rest of the whole input from this part on, skipping the first emitted bytes; for
+        // when the part couldn't be decoded on its own
+        default InputStream rest(long emitted, IOException failure) throws IOException {
+            throw failure;
+        }
+    }
+
+    // a filled chunk; length -1 marks the end of a part, and failure a part that went wrong
+    private static final class Chunk {
+        final byte[] data;
+        final int length;
+        final IOException failure;
+
+        Chunk(byte[] data, int length, IOException failure) {
+            this.data = data;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+
+    // a part being decoded, with the chunks it has produced so far
+    private static final class Running {
+        final Part part;
+        final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(QUEUED);
+        Future<?> task;
+
+        Running(Part part) {
+            this.part = part;
+        }
+    }
+
+    private final Iterator<Part> parts;
+    private final ExecutorService producers;
+    // most parts decoding or decoded but not yet read
+    private final int window;
+    private final ArrayDeque<Running> running = new ArrayDeque<>();
+    // chunks that have been read, ready to fill again
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+    private Chunk current;
+    private int position;
+    // bytes read from the part at the head of running
+    private long emitted;
+    // after a part failed, the rest of the input read directly
+    private InputStream rest;
+    private boolean closed;
+
+    // decode one stream on a producer thread
+    PipelinedInputStream(InputStream source) {
+        this(List.<Part>of(() -> source).iterator(), 1);
+    }
+
+    // decode the parts on up to threads producer threads, in order
+    PipelinedInputStream(Iterator<Part> parts, int threads) {
+        this.parts = parts;
+        this.window = threads + 1;
+        this.producers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "decoder");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // start decoding parts until the window is full
+    private void fill() {
+        while (running.size() < window && parts.hasNext()) {
+            Running r = new Running(parts.next());
+            r.task = producers.submit(() -> produce(r));
+            running.add(r);
+        }
+    }
+
+    // decode one part into chunks; runs on a producer thread
+    private void produce(Running r) {
+        try (InputStream in = r.part.open()) {
+            while (true) {
+                byte[] buf = free.poll();
+                if (buf == null) buf = new byte[CHUNK];
+                int n = fillChunk(in, buf);
+                if (n < 0) break;
+                r.chunks.put(new Chunk(buf, n, null));
+            }
+            r.chunks.put(new Chunk(null, -1, null));
+        } catch (IOException e) {
+            try {
+                r.chunks.put(new Chunk(null, -1, e));
+            } catch (InterruptedException stop) {
+                // closed while waiting
+            }
+        } catch (InterruptedException stop) {
+            // closed while waiting
+        }
+    }
+
+    // read into buf until it is full, or the source has nothing more without blocking;
+    // returns the bytes read, or -1 at the end of the source
+    private static int fillChunk(InputStream in, byte[] buf) throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) return n == 0 ? 0 : -1;
+        while (n < buf.length && in.available() > 0) {
+            int more = in.read(buf, n, buf.length - n);
+            if (more < 0) break;
+            n += more;
+        }
+        return n;
+    }
+
+    // make sure there is something left in the current chunk; returns false at the end
+    private boolean advance() throws IOException {
+        if (closed) throw new IOException("stream closed");
+        while (current == null || position == current.length) {
+            if (current != null) {
+                free.offer(current.data);
+                current = null;
+            }
+            fill();
+            Running head = running.peek();
+            if (head == null) {
+                producers.shutdown();
+                return false;
+            }
+            Chunk chunk;
+            try {
+                chunk = head.chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (chunk.failure != null) {
+                // read the rest directly, carrying on from where this part got to
+                rest = head.part.rest(emitted, chunk.failure);
+                stopProducers();
+                return false;
+            }
+            if (chunk.length < 0) {
+                running.remove();
+                emitted = 0;
+                continue;
+            }
+            current = chunk;
+            position = 0;
+            emitted += chunk.length;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (rest != null) return rest.read();
+        if (!advance()) return rest != null ? rest.read() : -1;
+        return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (rest != null) return rest.read(b, off, len);
+        if (!advance()) return rest != null ? rest.read(b, off, len) : -1;
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    // what can be read without waiting for a producer
+    @Override
+    public int available() throws IOException {
+        if (rest != null) return rest.available();
+        if (current != null && position < current.length) return current.length - position;
+        Running head = running.peek();
+        Chunk next = head == null ? null : head.chunks.peek();
+        return next == null ? 0 : Math.max(next.length, 0);
+    }
+
+    private void stopProducers() {
+        for (Running r : running) r.task.cancel(true);
+        running.clear();
+        producers.shutdownNow();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        stopProducers();
+        if (rest != null) rest.close();
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.*;
+
+/**
+ * Prefilter.java
+ *
+ * cheap pre-check run before the FSM: a line can only match if it contains every required
+ * literal found by Literals, which is checked with a Boyer-Moore-Horspool scan. when every
+ * match has to start with a known prefix, the FSM can also start at its first occurrence.
+ * after that it starts at the first character a match can start with (see StartBytes), and a
+ * line without one is rejected too.
+ */
+public class Prefilter {
+    private final String[] literals;
+    // Horspool shift tables, indexed by the low byte of a character
+    private final int[][] shifts;
+    // index of the prefix in literals, or -1
+    private final int prefix;
+    // the characters a match can start with, or null
+    private final StartBytes starts;
+
+    private Prefilter(Literals found, StartBytes starts) {
+        // drop literals already implied by a longer one, except the prefix whose position is needed
+        List<String> kept = new ArrayList<>();
+        int p = -1;
+        for (String literal : found.text) {
+            boolean isPrefix = p == -1 && literal.equals(found.prefix);
+            if (isPrefix) {
+                p = kept.size();
+            } else if (implied(kept, literal)) {
+                continue;
+            }
+            kept.add(literal);
+        }
+        literals = kept.toArray(new String[0]);
+        shifts = new int[literals.length][];
+        for (int i = 0; i < literals.length; i++) shifts[i] = shiftTable(literals[i]);
+        prefix = p;
+        this.starts = starts;
+    }
+
+    // return true if the literal occurs inside one already kept
+    private static boolean implied(List<String> kept, String literal) {
+        for (String k : kept) {
+            if (k.contains(literal)) return true;
+        }
+        return false;
+    }
+
+    // build a prefilter for an FSM, or return null if it has no required literals and a match
+    // can start with any character
+    static Prefilter build(FSM fsm) {
+        Literals found = Literals.analyse(fsm);
+        StartBytes starts = StartBytes.build(fsm);
+        return found.isEmpty() && starts == null ? null : new Prefilter(found, starts);
+    }
+
+    // the characters a match can start with, or null if it can start with any
+    StartBytes startBytes() {
+        return starts;
+    }
+
+    // return -1 if the line cannot match, otherwise the position the FSM should start from
+    int candidate(CharSequence line) {
+        return candidate(line, 0);
+    }
+
+    // the same, when it is already known that no match starts before from
+    int candidate(CharSequence line, int from) {
+        int start = from;
+        for (int i = 0; i < literals.length; i++) {
+            int at = indexOf(line, i);
+            if (at < 0) return -1;
+            if (i == prefix) start = Math.max(start, at);
+        }
+        return starts == null ? start : starts.first(line, start);
+    }
+
+    // position of the first occurrence of literal i in the line, or -1
+    private int indexOf(CharSequence line, int i) {
+        String pattern = literals[i];
+        // String.indexOf is an intrinsic, hard to beat
+        if (line instanceof String) return ((String) line).indexOf(pattern);
+
+        int[] shift = shifts[i];
+        int last = pattern.length() - 1;
+        char lastChar = pattern.charAt(last);
+        int end = line.length() - pattern.length();
+        int pos = 0;
+        while (pos <= end) {
+            char c = line.charAt(pos + last);
+            if (c == lastChar) {
+                int j = last - 1;
+                while (j >= 0 && line.charAt(pos + j) == pattern.charAt(j)) j--;
+                if (j < 0) return pos;
+            }
+            pos += shift[c & 0xFF];
+        }
+        return -1;
+    }
+
+    // Horspool bad-character shifts; characters sharing a low byte share the smallest shift
+    static int[] shiftTable(String pattern) {
+        int[] shift = new int[256];
+        int last = pattern.length() - 1;
+        Arrays.fill(shift, pattern.length());
+        for (int j = 0; j < last; j++) shift[pattern.charAt(j) & 0xFF] = last - j;
+        return shift;
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * REclient.java
+ *
+ * the thin client for REserver: sends the regexps and REsearch options to a running server
+ * and copies the matches to standard output and the messages to standard error as they
+ * arrive, exiting with the search's status. it takes the place of REcompile piped into
+ * REsearch, with the regexp first as REcompile takes it:
+ *
+ *     java REclient [--port <N> | --socket <path>] [REsearch options] "<regexp>" <path>...
+ *     java REclient [--port <N> | --socket <path>] [REsearch options] -e "<regexp>"... <path>...
+ *     java REclient [--port <N> | --socket <path>] [REsearch options] --index <indexfile> "<regexp>" [<path>...]
+ */
+public class REclient {
+    public static void main(String[] args) throws IOException {
+        int port = REserver.DEFAULT_PORT;
+        String socket = null;
+        List<String> patterns = new ArrayList<>();
+        boolean patternGiven = false;
+        List<String> options = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        boolean indexed = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--socket") && i + 1 < args.length) {
+                socket = args[++i];
+            } else if (args[i].equals("-e") && i + 1 < args.length) {
+                // one of several regexps, as REcompile takes them
+                patterns.add(args[++i]);
+                patternGiven = true;
+            } else if (args[i].equals("-f") && i + 1 < args.length) {
+                // one regexp per line, like REcompile -f
+                for (String line : Files.readAllLines(Paths.get(args[++i]))) {
+                    if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+                    if (!line.isEmpty()) patterns.add(line);
+                }
+                patternGiven = true;
+            } else if ((args[i].equals("-j") || args[i].equals("--dfa-cache") || args[i].equals("-m")) && i + 1 < args.length) {
+                // options that take a value are passed on with it
+                options.add(args[i]);
+                options.add(args[++i]);
+            } else if (args[i].equals("--index") && i + 1 < args.length) {
+                // a file too, so resolved here; with no path, the server searches every indexed file
+                options.add(args[i]);
+                options.add(Paths.get(args[++i]).toAbsolutePath().toString());
+                indexed = true;
+            } else if (args[i].startsWith("-") && args[i].length() > 1) {
+                // flags are passed on for the server to handle as REsearch would
+                options.add(args[i]);
+            } else if (!patternGiven) {
+                patterns.add(args[i]);
+                patternGiven = true;
+            } else {
+                // the server has its own working directory
+                paths.add(Paths.get(args[i]).toAbsolutePath().toString());
+            }
+        }
+        if (patterns.isEmpty() || (paths.isEmpty() && !indexed)) {
+            System.err.println("Usage: java REclient [--port <N> | --socket <path>] [REsearch options] \"<regexp>\" <path>...");
+            System.err.println("       java REclient [--port <N> | --socket <path>] [REsearch options] --index <indexfile> \"<regexp>\" [<path>...]");
+            System.err.println("       java REclient [--port <N> | --socket <path>] [REsearch options] -e \"<regexp>\"... | -f <patternfile> <path>...");
+            System.exit(1);
+        }
+
+        SocketChannel channel;
+        try {
+            channel = socket != null
+                    ? SocketChannel.open(UnixDomainSocketAddress.of(socket))
+                    : SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            System.err.println("Error: no REserver at " + (socket != null ? socket : "port " + port) + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        int status;
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            List<String> searchArgs = new ArrayList<>(options);
+            searchArgs.addAll(paths);
+            REserver.writeStrings(request, patterns);
+            REserver.writeStrings(request, searchArgs);
+            request.flush();
+            status = copyResponse(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel))));
+        } catch (EOFException e) {
+            System.err.println("Error: REserver closed the connection");
+            status = 1;
+        }
+        System.out.flush();
+        if (status != 0) System.exit(status);
+    }
+
+    // method to copy the response frames to standard output and error, returning the exit status
+    private static int copyResponse(DataInputStream in) throws IOException {
+        byte[] buf = new byte[1 << 16];
+        while (true) {
+            int kind = in.readUnsignedByte();
+            if (kind == REserver.EXIT) return in.readInt();
+            int len = in.readInt();
+            if (len > buf.length) buf = new byte[len];
+            in.readFully(buf, 0, len);
+            if (kind == REserver.OUT) {
+                System.out.write(buf, 0, len);
+                System.out.flush();
+            } else {
+                System.err.write(buf, 0, len);
+                System.err.flush();
+            }
+        }
+    }
+}
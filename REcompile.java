@@ -1,38 +1,77 @@
-
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
 
 /**
  * REcompile.java
  * Author: Kai Meiklejohn 
  * 
- * Entry point: read one regexp, build FSM, print it.
+ * Entry point: read one or more regexps, build FSM, print it.
  */
 public class REcompile {
-    public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Usage: java compile.REcompile \"<regexp>\"");
+    public static void main(String[] args) throws IOException {
+        // regexps come from the arguments, or one per line from a file with -f
+        List<String> patterns = new ArrayList<>();
+        boolean binary = false;
+        boolean optimise = true;
+        boolean dfa = false;
+        int maxStates = DFA.DEFAULT_MAX_STATES;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--no-optimise")) {
+                // print the FSM exactly as Thompson's construction leaves it
+                optimise = false;
+            } else if (args[i].equals("--dfa")) {
+                // build the whole minimal DFA now instead of at search time
+                dfa = true;
+            } else if (args[i].equals("--dfa-max-states") && i + 1 < args.length) {
+                maxStates = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--binary")) {
+                // write the compact binary format instead of text
+                binary = true;
+            } else if (args[i].equals("-f") && i + 1 < args.length) {
+                for (String line : Files.readAllLines(Paths.get(args[++i]))) {
+                    if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+                    if (!line.isEmpty()) patterns.add(line);
+                }
+            } else {
+                patterns.add(args[i]);
+            }
+        }
+        if (patterns.isEmpty()) {
+            System.err.println("Usage: java compile.REcompile [--binary] [--no-optimise] [--dfa [--dfa-max-states <N>]] \"<regexp>\"... | -f <patternfile>");
             System.exit(1);
         }
 
-        // 1) initialise parser/compiler
-        Compiler.init(args[0]);
-
-        // 2) parse & compile whole regexp → returns (start,end) of NFA
-        Compiler.Frag machine = Compiler.expression();
-
-        // 2a) make sure we consumed the entire string
-        if (Compiler.pos < Compiler.re.length() || Compiler.parenCount != 0) {
-            throw new RuntimeException("Unmatched parentheses or extra input at pos " 
-                                       + Compiler.pos);
+        // parse & compile every regexp into one FSM
+        Compiler compiler = new Compiler();
+        compiler.optimise = optimise;
+        FSM fsm = compiler.build(patterns);
+        if (optimise) {
+            // fewer states means fewer epsilon hops for every character searched
+            System.err.println("Optimised: removed " + compiler.removed + " of " + (fsm.size + compiler.removed) + " states");
         }
 
-        // 3) create explicit end state (BR, -1, -1)
-        int endState = Compiler.newEndState();
-        Compiler.patch(machine.end, endState);
-
-        // 4) wrap with state 0 branching to real start
-        Compiler.setstate(0, ' ', machine.start, machine.start); // Branch only to start
+        if (dfa) {
+            DFA table = null;
+            if (fsm.patternCount > 0) {
+                System.err.println("A DFA only says whether a line matches, not which pattern, writing the FSM instead");
+            } else {
+                table = DFA.build(fsm, maxStates);
+                // too many states: REsearch will run the FSM as usual
+                if (table == null) System.err.println("DFA needs more than " + maxStates + " states, writing the FSM instead");
+            }
+            if (table != null) {
+                System.err.println("DFA: " + table.size() + " states, " + table.classCount() + " character classes");
+                table.write(System.out);
+                return;
+            }
+        }
 
-        // 5) emit states 0 … (nextState-1)
-        Compiler.printFSM();
+        // emit states 0 … (nextState-1)
+        if (binary) {
+            fsm.writeBinary(System.out);
+        } else {
+            compiler.printFSM();
+        }
     }
 }
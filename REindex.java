@@ -0,0 +1,81 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * REindex.java
+ *
+ * builds or updates a trigram index over files and directory trees, for REsearch --index.
+ * run it again with the same paths to bring the index up to date: files that have only grown
+ * have just their new text indexed, changed files are indexed again, unchanged ones are
+ * skipped and files that are gone are dropped.
+ *
+ *     java REindex [--block <KB>] <indexfile> <path>...
+ */
+public class REindex {
+    public static void main(String[] args) throws IOException {
+        int blockSize = TrigramIndex.DEFAULT_BLOCK;
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--block") && i + 1 < args.length) {
+                // smaller blocks skip more text, at the cost of a bigger index
+                blockSize = Integer.parseInt(args[++i]) << 10;
+            } else {
+                rest.add(args[i]);
+            }
+        }
+        if (rest.size() < 2) {
+            System.err.println("Usage: java REindex [--block <KB>] <indexfile> <path>...");
+            System.exit(1);
+        }
+        Path indexFile = Paths.get(rest.get(0));
+
+        TrigramIndex index;
+        if (Files.exists(indexFile)) {
+            if (!TrigramIndex.isIndex(indexFile)) {
+                System.err.println("Error: " + indexFile + " exists and is not a trigram index");
+                System.exit(1);
+            }
+            index = TrigramIndex.load(indexFile);
+        } else {
+            index = TrigramIndex.create(blockSize);
+        }
+
+        // every regular file under the paths, except the index itself
+        Path self = indexFile.toAbsolutePath().normalize();
+        List<Path> files = new ArrayList<>();
+        for (String p : rest.subList(1, rest.size())) {
+            Files.walkFileTree(Paths.get(p), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !file.toAbsolutePath().normalize().equals(self)) files.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    System.err.println("Error reading file: " + file + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        int[] changes = new int[TrigramIndex.Change.values().length];
+        Set<String> seen = new HashSet<>();
+        for (Path file : files) {
+            try {
+                changes[index.update(file).ordinal()]++;
+                seen.add(file.toAbsolutePath().normalize().toString());
+            } catch (IOException e) {
+                System.err.println("Error reading file: " + file + ": " + e.getMessage());
+            }
+        }
+        int removed = index.retain(seen);
+        int trigrams = index.write(indexFile);
+        System.err.println("Indexed " + seen.size() + " files (" + changes[TrigramIndex.Change.INDEXED.ordinal()]
+                + " indexed, " + changes[TrigramIndex.Change.APPENDED.ordinal()] + " appended, "
+                + changes[TrigramIndex.Change.UNCHANGED.ordinal()] + " unchanged, " + removed + " removed), "
+                + trigrams + " trigrams");
+    }
+}
@@ -1,7 +1,10 @@
 
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.function.Supplier;
 
 /**
  * REsearch.java
@@ -10,227 +13,420 @@ import java.util.*;
  * handles the search of a file using a finite state machine (FSM) built from a regular expression
  */
 public class REsearch {
-    // variables to hold FSM data
-    private static char[] ch;
-    private static int[] next1;
-    private static int[] next2;
-    private static boolean[] isWildcard;  // Added to distinguish wildcards from literal periods
     private static final int SCAN = -2;
+    // matches are written through a buffer this big, so output is written in large blocks
+    private static final int OUTPUT_SIZE = 1 << 20;
+
+    // where the pattern comes from: standard input or the --fsm file here, REserver's cache there
+    interface PatternSource {
+        CompiledPattern load(String fsmFile, boolean useDfa, long cacheBytes, boolean usePrefilter) throws IOException;
+    }
 
     public static void main(String[] args) {
-        // Check for correct number of arguments
-        if (args.length != 1) {
+        int status = run(args, (fsmFile, useDfa, cacheBytes, usePrefilter) ->
+                readPattern(fsmFile, useDfa, cacheBytes, usePrefilter), System.out, System.err);
+        if (status != 0) System.exit(status);
+    }
+
+    // method to run one search as described by the arguments, writing matches to out and messages
+    // to err, and return the exit status
+    static int run(String[] args, PatternSource source, OutputStream out, PrintStream err) {
+        boolean useDfa = true;
+        boolean usePrefilter = true;
+        boolean useMmap = false;
+        int threads = 1;
+        long cacheBytes = CompiledPattern.DEFAULT_CACHE_BYTES;
+        String statsFormat = null;
+        String fsmFile = null;
+        boolean follow = false;
+        boolean codegen = false;
+        String indexFile = null;
+        boolean count = false;
+        boolean filesOnly = false;
+        boolean quiet = false;
+        long max = Long.MAX_VALUE;
+        List<String> paths = new ArrayList<>();
+        // parse options, the remaining arguments are files or directories
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--nfa")) {
+                // simulate the NFA directly instead of building a DFA
+                useDfa = false;
+            } else if (args[i].equals("--no-prefilter")) {
+                // run the FSM on every line, even ones missing a required literal
+                usePrefilter = false;
+            } else if (args[i].equals("--mmap")) {
+                // scan the mapped file as bytes instead of decoding it line by line
+                useMmap = true;
+            } else if (args[i].equals("-j") && i + 1 < args.length) {
+                // search with several threads, "auto" uses one per core
+                String n = args[++i];
+                long wanted = n.equals("auto") ? Runtime.getRuntime().availableProcessors() : parseCount(n);
+                if (wanted < 1 || wanted > Integer.MAX_VALUE) {
+                    err.println("Error: -j takes a number of threads of at least 1, or auto, not " + n);
+                    return usage(err);
+                }
+                threads = (int) wanted;
+            } else if (args[i].equals("--dfa-cache") && i + 1 < args.length) {
+                // the lazy DFA's cache in MB; 0 leaves it room for only the state it is in
+                String mb = args[++i];
+                long size = parseCount(mb);
+                if (size < 0 || size > Long.MAX_VALUE >> 20) {
+                    err.println("Error: --dfa-cache takes a number of MB of at least 0, not " + mb);
+                    return usage(err);
+                }
+                cacheBytes = size << 20;
+            } else if (args[i].equals("--stats") || args[i].equals("--stats=json")) {
+                // report what the search cost on stderr, as text or one JSON line
+                statsFormat = args[i].equals("--stats") ? "text" : "json";
+            } else if (args[i].equals("--fsm") && i + 1 < args.length) {
+                // read the FSM from a file, leaving standard input free for the text
+                fsmFile = args[++i];
+            } else if (args[i].equals("--index") && i + 1 < args.length) {
+                // only search the blocks a trigram index built by REindex can't rule out
+                indexFile = args[++i];
+            } else if (args[i].equals("--codegen")) {
+                // search with a matcher compiled for this pattern's DFA, if one can be made
+                codegen = true;
+            } else if (args[i].equals("--follow")) {
+                // keep reading the file as it grows, like tail -f
+                follow = true;
+            } else if (args[i].equals("-c")) {
+                // print how many lines match in each file instead of the lines
+                count = true;
+            } else if (args[i].equals("-l")) {
+                // print the name of each file with a match, stopping the file at its first
+                filesOnly = true;
+            } else if (args[i].equals("-q")) {
+                // print nothing, stop at the first match and say whether there was one in the exit status
+                quiet = true;
+            } else if (args[i].equals("-m") && i + 1 < args.length) {
+                // stop each file after this many matching lines; a negative number is no limit, as in grep
+                String n = args[++i];
+                max = parseCount(n);
+                if (max == Long.MIN_VALUE) {
+                    err.println("Error: -m takes a number of lines, not " + n);
+                    return usage(err);
+                }
+                if (max < 0) max = Long.MAX_VALUE;
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        // with the FSM in a file, no path (or "-") means the text comes from standard input
+        boolean fromStdin = fsmFile != null && indexFile == null && (paths.isEmpty() || paths.equals(List.of("-")));
+        // Check for correct number of arguments; with an index, no path means every indexed file
+        if ((paths.isEmpty() && !fromStdin && indexFile == null) || (follow && (fromStdin || paths.size() != 1))) {
             // Print usage message and exit
-            System.err.println("Usage: java search.REsearch <filename>");
-            System.exit(1);
+            return usage(err);
         }
-        // store file name from argument
-        String filename = args[0];
-
-        // Read FSM from standard input
-        Scanner fsmInput = new Scanner(System.in);
-        List<String> fsmLines = new ArrayList<>();
-        // Read lines from standard input until file has ended
-        while (fsmInput.hasNextLine()) {
-            String line = fsmInput.nextLine();
-            // store each line in the list
-            fsmLines.add(line);
+        OutputMode.Kind kind = quiet ? OutputMode.Kind.QUIET : filesOnly ? OutputMode.Kind.FILES
+                : count ? OutputMode.Kind.COUNT : OutputMode.Kind.LINES;
+        OutputMode mode = new OutputMode(kind, max);
+
+        // the prefilter and pattern split are shared, each thread gets its own engine
+        CompiledPattern compiled;
+        try {
+            CompiledPattern loaded = source.load(fsmFile, useDfa, cacheBytes, usePrefilter);
+            compiled = codegen ? loaded.generated() : loaded;
+        } catch (IOException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
         }
-        fsmInput.close();
-
-        // parsing fsm to find max state number
-        int maxState = -1;
-        for (String line : fsmLines) {
-            // split the line by commas and parse the state number
-            String[] parts = line.split(",");
-            int stateNum = Integer.parseInt(parts[0]);
-            if (stateNum > maxState) {
-                // update maxState to largest state number found
-                maxState = stateNum;
+        Prefilter prefilter = compiled.prefilter();
+        // the pattern only runs over raw bytes (mapped files, -j, standard input, followed files)
+        // where it matches the same lines as over decoded text: no wildcard, no non-ASCII literal
+        boolean byteSafe = compiled.isAscii();
+
+        // counters for --stats and the JFR event; when either is wanted, engines are tracked so
+        // their (not quite free) counters are kept and added at the end
+        SearchStats stats = new SearchStats();
+        final boolean track = statsFormat != null || stats.recording();
+        Supplier<Engine> newEngine = () -> track ? stats.track(compiled.newEngine()) : compiled.newEngine();
+        boolean ok = true;
+
+        TrigramIndex index = null;
+        int[] candidates = null;
+        if (indexFile != null) {
+            try {
+                index = TrigramIndex.open(Paths.get(indexFile));
+            } catch (IOException e) {
+                err.println("Error: can't read index " + indexFile + ": " + e.getMessage());
+                return 1;
             }
-        }
-        // initialise arrays with size maxState + 1
-        ch    = new char[maxState + 1];
-        next1 = new int [maxState + 1];
-        next2 = new int [maxState + 1];
-        isWildcard = new boolean[maxState + 1];  // Initialize isWildcard array
-
-        for (String line : fsmLines) {
-            String[] parts = line.split(",");
-            int stateNum = Integer.parseInt(parts[0]);
-            if (parts[1].equals("BR")) {
-                ch[stateNum] = '\0';
-                isWildcard[stateNum] = false;
-            } else if (parts[1].equals("WC")) {
-                ch[stateNum] = '.';  // Optional, kept for consistency
-                isWildcard[stateNum] = true;
-            } else if (!parts[1].isEmpty()) {
-                // handle literal character, including escaped characters like '\'
-                ch[stateNum] = parts[1].charAt(0);
-                isWildcard[stateNum] = false;
-            } else {
-                // Accepting state, do nothing for ch and isWildcard
+            // the blocks that could hold a match; a prebuilt DFA has no FSM to plan from
+            TrigramQuery query = compiled.fsm() == null ? TrigramQuery.ALL : TrigramQuery.plan(compiled.fsm());
+            candidates = index.candidates(query);
+            stats.addIndex(index.blockCount(), candidates == null ? index.blockCount() : candidates.length);
+            if (paths.isEmpty()) {
+                for (String p : index.paths()) {
+                    if (Files.exists(Paths.get(p))) paths.add(p);
+                }
+                if (paths.isEmpty()) return finish(stats, statsFormat, true, mode, err);
             }
-            
-            // setting first and second next states
-            next1[stateNum] = Integer.parseInt(parts[2]);
-            next2[stateNum] = Integer.parseInt(parts[3]);
         }
+        final TrigramIndex searchIndex = index;
+        final int[] searchBlocks = candidates;
 
         // search through the file for matches using fsm
-        try (BufferedReader fileReader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = fileReader.readLine()) != null) {
-                if (searchLine(line)) {
-                    System.out.println(line);
+        OutputStream output = new BufferedOutputStream(out, OUTPUT_SIZE);
+        try {
+            if (fromStdin) {
+                // text piped in, matches written as they are found; it may be compressed
+                long matched = searchStream(Codec.decodeAny(System.in), newEngine.get(), prefilter, byteSafe, mode, output, stats);
+                mode.finish(OutputMode.STDIN_NAME, "", matched, output);
+                output.flush();
+                return finish(stats, statsFormat, true, mode, err);
+            }
+            Path first = Paths.get(paths.get(0));
+            if (follow) {
+                // never ends on its own, unless -m, -l or -q is satisfied; matches appear as lines are appended
+                long matched;
+                try (InputStream in = new FollowInputStream(first)) {
+                    matched = searchStream(in, newEngine.get(), prefilter, byteSafe, mode, output, stats);
                 }
+                mode.finish(first.toString(), "", matched, output);
+            } else if (paths.size() == 1 && !Files.isDirectory(first)) {
+                long matched;
+                if (threads > 1 && byteSafe && index == null && mode.limit() == Long.MAX_VALUE && Codec.of(first) == null) {
+                    // split the mapped file across threads, each with its own engine; with a limit
+                    // it is quicker to stop one scan early
+                    ParallelScanner scanner = new ParallelScanner(threads, newEngine, prefilter, output);
+                    scanner.setStats(stats);
+                    scanner.setPrintLines(mode.printsLines());
+                    scanner.scanFile(first);
+                    matched = scanner.matched();
+                } else {
+                    // a compressed file is decoded on the spare threads, or on -j of them
+                    int decoders = threads > 1 ? threads : Runtime.getRuntime().availableProcessors();
+                    matched = searchFile(first, index, candidates, newEngine.get(), prefilter, useMmap && byteSafe, decoders,
+                            "", mode, output, stats);
+                }
+                mode.finish(first.toString(), "", matched, output);
+            } else {
+                // several files or directory trees: search files concurrently, naming the file on each match
+                ThreadLocal<Engine> engines = ThreadLocal.withInitial(newEngine);
+                boolean bytes = useMmap && byteSafe;
+                int workers = threads > 1 ? threads : Runtime.getRuntime().availableProcessors();
+                TreeSearch search = new TreeSearch(workers, (path, matches) -> {
+                    String label = path + ":";
+                    long matched = searchFile(path, searchIndex, searchBlocks, engines.get(), prefilter, bytes, 1,
+                            label, mode, matches, stats);
+                    mode.finish(path.toString(), label, matched, matches);
+                }, output);
+                search.setErrors(err);
+                // with -q, one match anywhere answers the question
+                search.setStop(mode::stopped);
+                ok = search.run(paths);
             }
+            output.flush();
         } catch (IOException e) {
             // handle file reading errors
-            System.err.println("Error reading file: " + e.getMessage());
-            System.exit(1);
+            err.println("Error reading file: " + e.getMessage());
+            return 1;
         }
-    }
 
-    // method to search through each line of the file using the fsm
-    private static boolean searchLine(String line) {
-        // variables to hold current and next states
-        Dequeue current = new Dequeue();
-        Dequeue next = new Dequeue();
-        current.addBack(0);
-
-        // loop through each character in the line
-        for (int i = 0; i < line.length(); i++) {
-            // get the current character
-            char c = line.charAt(i);
-            // mark state as visited
-            Set<Integer> visited = new HashSet<>();
-
-            while (!current.isEmpty()) {
-                // get the next state from the current queue
-                int state = current.removeFront();
-                // check if state is already visited
-                if (visited.contains(state)) continue;
-                // mark state as visited
-                visited.add(state);
-
-                if (next1[state] == -1 && next2[state] == -1) {
-                    // return true if accepting state is reached
-                    return true;
-                }
+        return finish(stats, statsFormat, ok, mode, err);
+    }
 
-                // handle branching states
-                if (ch[state] == '\0') {
-                    // add first branch
-                    if (next1[state] != -1) current.addBack(next1[state]);
-                    // add second branch
-                    if (next2[state] != -1) current.addBack(next2[state]);
-                // handle character match
-                } else if (isWildcard[state] || ch[state] == c) {  // Updated condition
-                    // add next state
-                    if (next1[state] != -1) next.addBack(next1[state]);
-                }
-            }
+    // method to print the usage message and return the exit status for it
+    private static int usage(PrintStream err) {
+        err.println("Usage: java search.REsearch [--nfa] [--dfa-cache <MB>] [--no-prefilter] [--codegen] [--mmap] [-j <N|auto>] [--stats[=json]] [-c | -l | -q] [-m <N>] <path>...");
+        err.println("       java search.REsearch [options] --fsm <fsmfile> [--follow <file> | <path>... | -]");
+        err.println("       java search.REsearch [options] --index <indexfile> [<path>...]");
+        return 1;
+    }
 
-            // move to next character by switching queues and allowing new matches
-            current = next;
-            // move next states to current
-            next = new Dequeue();
-            // add start state for new match possibility
-            current.addBack(0);
+    // method to parse an option's whole number value, returning Long.MIN_VALUE if it isn't one
+    private static long parseCount(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
         }
-        // set to track visited states
-        Set<Integer> visited = new HashSet<>();
-        Dequeue closure = new Dequeue();
-        // move all states from current to closure
-        while (!current.isEmpty()) {
-            closure.addBack(current.removeFront());
+    }
+
+    // method to read the FSM from standard input or the --fsm file, in the text or binary format,
+    // or a prebuilt DFA table
+    private static CompiledPattern readPattern(String fsmFile, boolean useDfa, long cacheBytes,
+                                               boolean usePrefilter) throws IOException {
+        String from = fsmFile == null ? "standard input" : fsmFile;
+        try (InputStream fsmIn = fsmFile == null ? System.in : Files.newInputStream(Paths.get(fsmFile))) {
+            return CompiledPattern.read(fsmIn, useDfa, cacheBytes, usePrefilter);
+        } catch (IOException | RuntimeException e) {
+            throw new IOException("no FSM read from " + from + ": " + e.getMessage(), e);
         }
-        // explore all reachable states from the closure
-        while (!closure.isEmpty()) {
-            int s = closure.removeFront();
-            // if already visited, skip
-            if (visited.contains(s)) continue;
-            // mark state as visited
-            visited.add(s);
-            //handle branching states
-            if (ch[s] == '\0') {
-                // add first branch
-                if (next1[s] != -1) closure.addBack(next1[s]);
-                // add second branch
-                if (next2[s] != -1) closure.addBack(next2[s]);
+    }
+
+    // method to report the stats and return the exit status, 1 if something went wrong; with -q,
+    // 0 if anything matched and 1 if nothing did
+    private static int finish(SearchStats stats, String statsFormat, boolean ok, OutputMode mode, PrintStream err) {
+        stats.collect();
+        if ("text".equals(statsFormat)) stats.print(err);
+        if ("json".equals(statsFormat)) stats.printJson(err);
+        stats.commitEvent();
+        if (mode.kind == OutputMode.Kind.QUIET) return mode.found() ? 0 : 1;
+        return ok ? 0 : 1;
+    }
+
+    // method to search a stream that may be slow or never end, such as a pipe or a followed file.
+    // matches are flushed before waiting for more input, and at least every FLUSH_INTERVAL while
+    // input keeps arriving, rather than after every line. returns the number of matching lines
+    private static long searchStream(InputStream in, Engine engine, Prefilter prefilter, boolean bytes,
+                                     OutputMode mode, OutputStream out, SearchStats stats) throws IOException {
+        if (bytes) {
+            ByteScanner scanner = scanner(engine, prefilter, mode, out);
+            try {
+                scanner.scanStream(in);
+            } finally {
+                scanner.addStats(stats);
             }
-            current.addBack(s);
+            return scanner.matched();
         }
-
-        // check for accepting states in final queue
-        while (!current.isEmpty()) {
-            int state = current.removeFront();
-            if (next1[state] == -1 && next2[state] == -1) {
-                // return true if accepting state is reached
-                return true;
+        // the FSM has non-ASCII literals, so decode the text
+        long lines = 0;
+        long matched = 0;
+        long rejected = 0;
+        long limit = mode.limit();
+        Writer writer = new OutputStreamWriter(out);
+        CountingInputStream counted = new CountingInputStream(in);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(counted));
+        long lastFlush = System.nanoTime();
+        boolean pending = false;
+        String line;
+        while (matched < limit && (line = reader.readLine()) != null) {
+            lines++;
+            int from = prefilter == null ? 0 : prefilter.candidate(line);
+            if (from < 0) rejected++;
+            if (from >= 0 && engine.search(line, from)) {
+                matched++;
+                if (mode.printsLines()) {
+                    writeLine(writer, "", engine, line);
+                    pending = true;
+                }
+            }
+            if (pending && (!reader.ready() || System.nanoTime() - lastFlush >= ByteScanner.FLUSH_INTERVAL)) {
+                writer.flush();
+                pending = false;
+                lastFlush = System.nanoTime();
             }
         }
-        // if no accepting state is reached, return false
-        return false;
+        writer.flush();
+        stats.addScan(counted.count(), lines, matched, prefilter == null ? 0 : lines, rejected);
+        return matched;
     }
 
-    // dequeue class to manage the states during the search
-    public static class Dequeue {
-        // node class for a double linked list
-        private static class Node {
-            int state;
-            Node prev, next;
-            Node(int state) { this.state = state; }
+    // method to search one file, writing each matching line to out after the label and counting into
+    // stats; with an index, only the parts of the file it can't rule out are searched. a compressed
+    // file is decoded on up to decoders other threads while it is searched. returns the number of
+    // matching lines, which with a limit is where the search stopped
+    private static long searchFile(Path path, TrigramIndex index, int[] candidates, Engine engine, Prefilter prefilter,
+                                   boolean bytes, int decoders, String label, OutputMode mode, OutputStream out,
+                                   SearchStats stats) throws IOException {
+        Codec codec = Codec.of(path);
+        if (codec != null) {
+            // the index only knows the compressed bytes, so all of the text is searched; stopping
+            // early closes the stream, which stops the decoders
+            try (InputStream in = codec.open(path, decoders)) {
+                return searchDecoded(in, engine, prefilter, bytes, label, mode, out, stats);
+            }
         }
-        // variables to hold the head and tail of the queue
-        private Node head;
-        private Node tail;
-        private int size = 0;
-
-        // method to add a state to the front of the queue
-        public void addFront(int state) {
-            Node node = new Node(state);
-            if (head == null) {
-                head = tail = node;
+        long[] ranges = index == null ? null : index.ranges(path, candidates);
+        if (bytes) {
+            ByteScanner scanner = scanner(engine, prefilter, mode, out);
+            scanner.setLabel(label);
+            if (ranges == null) {
+                scanner.scanFile(path);
             } else {
-                node.next = head;
-                head.prev = node;
-                head = node;
+                scanner.scanRanges(path, ranges);
             }
-            size++;
+            scanner.addStats(stats);
+            return scanner.matched();
         }
+        // otherwise decode one line at a time
+        long[] counts = new long[3];
+        long scanned;
+        if (ranges == null) {
+            // stopping early leaves the rest of the file unread
+            try (CountingInputStream counted = new CountingInputStream(Files.newInputStream(path))) {
+                searchLines(new BufferedReader(new InputStreamReader(counted)), engine, prefilter, label, mode, out,
+                        counts);
+                scanned = counted.count();
+            }
+        } else {
+            scanned = 0;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                for (int i = 0; i < ranges.length && counts[1] < mode.limit(); i += 2) {
+                    // each range starts and ends on a line boundary
+                    InputStream range = Channels.newInputStream(channel.position(ranges[i]));
+                    InputStream bounded = new ByteArrayInputStream(range.readNBytes((int) (ranges[i + 1] - ranges[i])));
+                    searchLines(new BufferedReader(new InputStreamReader(bounded)), engine, prefilter, label, mode, out,
+                            counts);
+                    scanned += ranges[i + 1] - ranges[i];
+                }
+            }
+        }
+        out.flush();
+        stats.addScan(scanned, counts[0], counts[1], prefilter == null ? 0 : counts[0], counts[2]);
+        return counts[1];
+    }
 
-        // method to add a state to the back of the queue
-        public void addBack(int state) {
-            Node node = new Node(state);
-            if (tail == null) {
-                head = tail = node;
-            } else {
-                tail.next = node;
-                node.prev = tail;
-                tail = node;
+    // method to search the decoded text of a compressed file
+    private static long searchDecoded(InputStream in, Engine engine, Prefilter prefilter, boolean bytes, String label,
+                                      OutputMode mode, OutputStream out, SearchStats stats) throws IOException {
+        if (bytes) {
+            ByteScanner scanner = scanner(engine, prefilter, mode, out);
+            scanner.setLabel(label);
+            try {
+                scanner.scanStream(in);
+            } finally {
+                scanner.addStats(stats);
             }
-            size++;
+            return scanner.matched();
         }
+        long[] counts = new long[3];
+        CountingInputStream counted = new CountingInputStream(in);
+        searchLines(new BufferedReader(new InputStreamReader(counted)), engine, prefilter, label, mode, out, counts);
+        out.flush();
+        stats.addScan(counted.count(), counts[0], counts[1], prefilter == null ? 0 : counts[0], counts[2]);
+        return counts[1];
+    }
 
-        // method to remove a state from the front of the queue
-        public int removeFront() {
-            if (head == null) throw new NoSuchElementException();
-            int val = head.state;
-            head = head.next;
-            if (head != null) {
-                head.prev = null;
-            } else {
-                tail = null;
+    // method to make a byte scanner that writes, counts and stops as the output mode says
+    private static ByteScanner scanner(Engine engine, Prefilter prefilter, OutputMode mode, OutputStream out) {
+        ByteScanner scanner = new ByteScanner(engine, prefilter, out);
+        scanner.setMaxMatches(mode.limit());
+        scanner.setPrintLines(mode.printsLines());
+        return scanner;
+    }
+
+    // method to search each line read, adding the lines, matches and prefilter rejections to counts,
+    // until the output mode has as many matches as it wants
+    private static void searchLines(BufferedReader reader, Engine engine, Prefilter prefilter, String label,
+                                    OutputMode mode, OutputStream out, long[] counts) throws IOException {
+        long limit = mode.limit();
+        // encodes straight into out, so matching lines aren't copied into strings first
+        Writer writer = new OutputStreamWriter(out);
+        String line;
+        while (counts[1] < limit && (line = reader.readLine()) != null) {
+            counts[0]++;
+            int from = prefilter == null ? 0 : prefilter.candidate(line);
+            if (from < 0) counts[2]++;
+            if (from >= 0 && engine.search(line, from)) {
+                counts[1]++;
+                if (mode.printsLines()) writeLine(writer, label, engine, line);
             }
-            size--;
-            return val;
         }
+        writer.flush();
+    }
 
-        // method to check if queue is empty
-        public boolean isEmpty() {
-            return size == 0;
+    // method to write a matching line after its label and, with several patterns, the ones that matched
+    private static void writeLine(Writer writer, String label, Engine engine, String line) throws IOException {
+        writer.write(label);
+        if (engine instanceof PatternSet.Matcher) {
+            writer.write(((PatternSet.Matcher) engine).matched());
+            writer.write(':');
         }
+        writer.write(line);
+        writer.write(System.lineSeparator());
     }
 }
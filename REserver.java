@@ -0,0 +1,202 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * REserver.java
+ *
+ * a long-running search daemon, so a query doesn't pay for two JVM startups, compiling the
+ * regexp, printing and re-reading the FSM and warming up the JIT every time. it listens on a
+ * loopback TCP port or a Unix domain socket, and each connection carries one request from
+ * REclient: the regexps, then the REsearch arguments. the search runs exactly as REsearch
+ * would, with its output and messages streamed back as they are written. compiled patterns
+ * are kept in an LRU cache keyed by the regexps (and the options that change what is built).
+ *
+ *     java REserver [--port <N> | --socket <path>] [--cache <N>]
+ */
+public class REserver {
+    static final int DEFAULT_PORT = 7878;
+    // compiled patterns kept by default
+    static final int DEFAULT_CACHE = 256;
+
+    // response frames: a kind byte then a length-prefixed block, or the exit status for EXIT
+    static final int OUT = 'o';
+    static final int ERR = 'e';
+    static final int EXIT = 'x';
+    // bytes of matches collected before a frame is sent
+    private static final int FRAME_SIZE = 1 << 16;
+
+    private final Map<String, CompiledPattern> cache;
+
+    REserver(int capacity) {
+        // access order, so the eldest entry is the least recently used
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledPattern> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        String socket = null;
+        int capacity = DEFAULT_CACHE;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--socket") && i + 1 < args.length) {
+                // a Unix domain socket, only reachable through the file system
+                socket = args[++i];
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                capacity = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: java REserver [--port <N> | --socket <path>] [--cache <N>]");
+                System.exit(1);
+            }
+        }
+
+        ServerSocketChannel server;
+        if (socket != null) {
+            Path path = Paths.get(socket);
+            // a socket file left by a server that didn't shut down cleanly
+            Files.deleteIfExists(path);
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(path));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // nothing more to do on the way out
+                }
+            }));
+        } else {
+            // loopback only, the server reads whatever files it is asked to
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        System.err.println("REserver listening on " + server.getLocalAddress());
+        new REserver(capacity).serve(server);
+    }
+
+    // accept connections forever, each request handled on its own thread
+    void serve(ServerSocketChannel server) throws IOException {
+        ExecutorService pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "request");
+            t.setDaemon(true);
+            return t;
+        });
+        while (true) {
+            SocketChannel client = server.accept();
+            pool.execute(() -> handle(client));
+        }
+    }
+
+    // method to read one request, run the search and send back its output and exit status
+    private void handle(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream frames = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+            List<String> patterns = readStrings(in);
+            List<String> args = readStrings(in);
+
+            OutputStream out = new BufferedOutputStream(new FrameStream(frames, OUT), FRAME_SIZE);
+            PrintStream err = new PrintStream(new FrameStream(frames, ERR), true);
+            // REsearch reports bad options and regexps itself, with an exit status of 1
+            int status = REsearch.run(args.toArray(new String[0]),
+                    (fsmFile, useDfa, cacheBytes, usePrefilter) -> {
+                        if (fsmFile != null) throw new IOException("--fsm can't be used with REserver");
+                        return lookup(patterns, useDfa, cacheBytes, usePrefilter);
+                    }, out, err);
+            out.flush();
+            synchronized (frames) {
+                frames.writeByte(EXIT);
+                frames.writeInt(status);
+                frames.flush();
+            }
+        } catch (IOException e) {
+            // the client went away, e.g. a --follow search interrupted with Ctrl-C
+        }
+    }
+
+    // method to find the compiled pattern in the cache, compiling it on a miss
+    private CompiledPattern lookup(List<String> patterns, boolean useDfa, long cacheBytes,
+                                   boolean usePrefilter) throws IOException {
+        String key = String.join("\n", patterns) + "\n" + useDfa + "," + cacheBytes + "," + usePrefilter;
+        synchronized (cache) {
+            CompiledPattern cached = cache.get(key);
+            if (cached != null) return cached;
+        }
+        // compiled outside the lock, so a big regexp doesn't hold up other requests
+        CompiledPattern compiled;
+        try {
+            compiled = new CompiledPattern(new Compiler().build(patterns), useDfa, cacheBytes, usePrefilter);
+        } catch (RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        synchronized (cache) {
+            cache.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    // method to write a list of strings: a count, then each as length-prefixed UTF-8
+    static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    // method to read a list written by writeStrings
+    static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            strings.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+
+    // sends everything written to it as frames of one kind; output and messages share the
+    // connection, so each frame is written whole
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream frames;
+        private final int kind;
+
+        FrameStream(DataOutputStream frames, int kind) {
+            this.frames = frames;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            synchronized (frames) {
+                frames.writeByte(kind);
+                frames.writeInt(len);
+                frames.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (frames) {
+                frames.flush();
+            }
+        }
+    }
+}
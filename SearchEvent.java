@@ -0,0 +1,63 @@
+import jdk.jfr.*;
+
+/**
+ * SearchEvent.java
+ *
+ * JFR event for one search run, with the same counters as --stats, so searches made through
+ * the library show up in a flight recording (jdk.jfr enabled with e.g. -XX:StartFlightRecording).
+ */
+@Name("regex.Search")
+@Label("Regex Search")
+@Category("Regex")
+@Description("Text scanned and work done by one search")
+@StackTrace(false)
+class SearchEvent extends Event {
+    @Label("Engine")
+    String engine;
+
+    @Label("Bytes Scanned")
+    @DataAmount
+    long bytes;
+
+    @Label("Lines Scanned")
+    long lines;
+
+    @Label("Lines Matched")
+    long matched;
+
+    @Label("Lines Rejected by Prefilter")
+    long prefilterRejected;
+
+    @Label("NFA Characters")
+    long nfaSteps;
+
+    @Label("Active NFA States")
+    long activeStates;
+
+    @Label("Max Active NFA States")
+    long maxActiveStates;
+
+    @Label("Epsilon Transitions")
+    long epsilonTransitions;
+
+    @Label("DFA Cache Misses")
+    long dfaMisses;
+
+    @Label("DFA States Built")
+    long dfaStates;
+
+    @Label("DFA Cache Flushes")
+    long dfaFlushes;
+
+    @Label("Indexed Blocks")
+    long indexBlocks;
+
+    @Label("Candidate Blocks Searched")
+    long indexCandidates;
+
+    @Label("Inner Literal Occurrences Checked")
+    long literalHits;
+
+    @Label("Lines Handed Back by Inner Literal")
+    long literalFellBack;
+}
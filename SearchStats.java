@@ -0,0 +1,210 @@
+import java.io.PrintStream;
+import java.util.*;
+import jdk.jfr.FlightRecorder;
+
+/**
+ * SearchStats.java
+ *
+ * counters for one search run, to see why a search is slow: how much text was scanned and
+ * matched, how often the prefilter threw a line away, how much NFA work each character cost
+ * and how well the DFA cache did. scanners add their counts when they finish a file or range,
+ * and engines add theirs when the run is reported, so nothing is shared in the hot loops.
+ */
+public class SearchStats {
+    // something that keeps its own counters and adds them in at the end
+    public interface Source {
+        // start keeping the counters that are only worth their cost when someone is looking
+        default void countWork() {
+        }
+
+        void addStats(SearchStats stats);
+    }
+
+    private final long started = System.nanoTime();
+    // JFR event spanning the run, only made when JFR is running since loading it is slow
+    private SearchEvent event;
+    private final List<Engine> engines = new ArrayList<>();
+    private String engine = "none";
+
+    long bytes;
+    long lines;
+    long matched;
+    // lines the prefilter looked at, and how many it rejected without running the FSM
+    long prefiltered;
+    long prefilterRejected;
+    // characters simulated by the NFA, the active states summed over them, and the most at once
+    long nfaSteps;
+    long activeStates;
+    long maxActiveStates;
+    // states entered through epsilon transitions
+    long epsilonTransitions;
+    // lazy DFA: characters searched, cache misses, states built, flushes and engines that gave up
+    long dfaSteps;
+    long dfaMisses;
+    long dfaStates;
+    long dfaFlushes;
+    long dfaGaveUp;
+    // trigram index: blocks in it, and blocks it couldn't rule out
+    long indexBlocks;
+    long indexCandidates;
+    // inner literal: occurrences checked, and lines handed back to the usual engine
+    long literalHits;
+    long literalFellBack;
+
+    public SearchStats() {
+        if (FlightRecorder.isInitialized()) {
+            event = new SearchEvent();
+            event.begin();
+        }
+    }
+
+    // return true if a flight recording will get this run's event
+    public boolean recording() {
+        return event != null;
+    }
+
+    // remember an engine so its counters are collected at the end; returns it for chaining
+    public synchronized Engine track(Engine e) {
+        if (engines.isEmpty()) engine = name(e);
+        engines.add(e);
+        if (e instanceof Source) ((Source) e).countWork();
+        return e;
+    }
+
+    // add the counts from one scanned file or range
+    public synchronized void addScan(long bytes, long lines, long matched, long prefiltered, long prefilterRejected) {
+        this.bytes += bytes;
+        this.lines += lines;
+        this.matched += matched;
+        this.prefiltered += prefiltered;
+        this.prefilterRejected += prefilterRejected;
+    }
+
+    // add the work done by an NFA
+    public synchronized void addNfa(long steps, long active, long maxActive, long epsilons) {
+        nfaSteps += steps;
+        activeStates += active;
+        maxActiveStates = Math.max(maxActiveStates, maxActive);
+        epsilonTransitions += epsilons;
+    }
+
+    // add the work done by a lazy DFA
+    public synchronized void addDfa(long steps, long misses, long states, long flushes, boolean gaveUp) {
+        dfaSteps += steps;
+        dfaMisses += misses;
+        dfaStates += states;
+        dfaFlushes += flushes;
+        if (gaveUp) dfaGaveUp++;
+    }
+
+    // add what a trigram index left to search
+    public synchronized void addIndex(long blocks, long candidates) {
+        indexBlocks += blocks;
+        indexCandidates += candidates;
+    }
+
+    // add the work done by an inner literal search
+    public synchronized void addInnerLiteral(long hits, long fellBack) {
+        literalHits += hits;
+        literalFellBack += fellBack;
+    }
+
+    // pull in the counters of every tracked engine, once all searching has finished
+    public synchronized void collect() {
+        for (Engine e : engines) {
+            if (e instanceof Source) ((Source) e).addStats(this);
+        }
+        engines.clear();
+    }
+
+    // seconds since the run started
+    double seconds() {
+        return (System.nanoTime() - started) / 1e9;
+    }
+
+    // print a human readable summary
+    public synchronized void print(PrintStream out) {
+        double seconds = seconds();
+        out.printf("engine:              %s%n", engine);
+        out.printf("scanned:             %d bytes, %d lines in %.3f s (%.1f MB/s)%n",
+                bytes, lines, seconds, megabytesPerSecond(seconds));
+        out.printf("matched:             %d lines%n", matched);
+        if (indexBlocks > 0) {
+            out.printf("index:               %d of %d blocks searched (%.1f%%)%n",
+                    indexCandidates, indexBlocks, 100.0 * indexCandidates / indexBlocks);
+        }
+        if (prefiltered > 0) {
+            out.printf("prefilter:           %d of %d lines rejected (%.1f%%)%n",
+                    prefilterRejected, prefiltered, 100.0 * prefilterRejected / prefiltered);
+        }
+        if (literalHits > 0) {
+            out.printf("inner literal:       %d occurrences checked, %d lines fell back%n", literalHits, literalFellBack);
+        }
+        if (nfaSteps > 0) {
+            out.printf("nfa:                 %d characters, %.2f active states per character (max %d)%n",
+                    nfaSteps, (double) activeStates / nfaSteps, maxActiveStates);
+            out.printf("epsilon transitions: %d%n", epsilonTransitions);
+        }
+        if (dfaSteps > 0 || dfaStates > 0) {
+            out.printf("lazy dfa:            %d states built, %.4f%% cache hits, %d flushes%s%n",
+                    dfaStates, 100 * dfaHitRate(), dfaFlushes, dfaGaveUp > 0 ? ", gave up" : "");
+        }
+    }
+
+    // print everything as one JSON object on a line
+    public synchronized void printJson(PrintStream out) {
+        double seconds = seconds();
+        out.printf(Locale.ROOT, "{\"engine\":\"%s\",\"bytes\":%d,\"lines\":%d,\"matched\":%d,\"seconds\":%.6f,"
+                        + "\"mbPerSecond\":%.3f,\"prefiltered\":%d,\"prefilterRejected\":%d,"
+                        + "\"nfaSteps\":%d,\"activeStates\":%d,\"maxActiveStates\":%d,\"epsilonTransitions\":%d,"
+                        + "\"dfaSteps\":%d,\"dfaMisses\":%d,\"dfaHitRate\":%.6f,\"dfaStates\":%d,\"dfaFlushes\":%d,"
+                        + "\"dfaGaveUp\":%d,\"indexBlocks\":%d,\"indexCandidates\":%d,\"literalHits\":%d,\"literalFellBack\":%d}%n",
+                engine, bytes, lines, matched, seconds, megabytesPerSecond(seconds), prefiltered, prefilterRejected,
+                nfaSteps, activeStates, maxActiveStates, epsilonTransitions,
+                dfaSteps, dfaMisses, dfaHitRate(), dfaStates, dfaFlushes, dfaGaveUp, indexBlocks, indexCandidates,
+                literalHits, literalFellBack);
+    }
+
+    // record the run as a JFR event, if a recording wants it
+    public synchronized void commitEvent() {
+        if (event == null) {
+            // a recording may have started since
+            if (!FlightRecorder.isInitialized()) return;
+            event = new SearchEvent();
+        }
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.engine = engine;
+        event.bytes = bytes;
+        event.lines = lines;
+        event.matched = matched;
+        event.prefilterRejected = prefilterRejected;
+        event.nfaSteps = nfaSteps;
+        event.activeStates = activeStates;
+        event.maxActiveStates = maxActiveStates;
+        event.epsilonTransitions = epsilonTransitions;
+        event.dfaMisses = dfaMisses;
+        event.dfaStates = dfaStates;
+        event.dfaFlushes = dfaFlushes;
+        event.indexBlocks = indexBlocks;
+        event.indexCandidates = indexCandidates;
+        event.literalHits = literalHits;
+        event.literalFellBack = literalFellBack;
+        event.commit();
+    }
+
+    private double megabytesPerSecond(double seconds) {
+        return seconds > 0 ? bytes / seconds / (1 << 20) : 0;
+    }
+
+    private double dfaHitRate() {
+        return dfaSteps > 0 ? 1 - (double) dfaMisses / dfaSteps : 0;
+    }
+
+    // short name for the engine doing the searching
+    private static String name(Engine e) {
+        if (e instanceof PatternSet.Matcher) return "patternset";
+        if (e instanceof GeneratedMatcher) return "generated";
+        return e.getClass().getSimpleName().toLowerCase(Locale.ROOT);
+    }
+}
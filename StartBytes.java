@@ -0,0 +1,125 @@
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * StartBytes.java
+ *
+ * the characters a match can start with: those of the consuming states in the epsilon closure
+ * of state 0. a match can't start anywhere else, so the search jumps to the first of them
+ * instead of starting the FSM at every position, and a line with none is rejected without
+ * running it. there is no such set when a match can start with a wildcard, or be empty.
+ * in byte mode a Finder runs over the whole buffer, past any number of lines at once. when
+ * the jdk.incubator.vector module is there, that is simd/VectorStartFinder.java, which compares
+ * a vector of bytes at a time; otherwise it is a table lookup per byte.
+ */
+final class StartBytes {
+    // most bytes the vector finder compares each vector with, the newline included; for more
+    // the table is about as quick
+    static final int MAX_VECTOR_BYTES = 8;
+    // the vector finder's constructor, or null if it can't be loaded
+    private static final Constructor<?> VECTOR = vectorFinder();
+
+    // finds start bytes in a buffer of lines, counting the newlines it passes
+    interface Finder {
+        // position of the first start byte in buf[from, to), or -1 if there is none
+        int find(ByteBuffer buf, int from, int to);
+
+        // newlines passed over by find so far
+        long newlines();
+    }
+
+    // the start characters, sorted, and which of the first 256 are among them
+    private final char[] chars;
+    private final boolean[] table = new boolean[256];
+
+    private StartBytes(char[] chars) {
+        this.chars = chars;
+        for (char c : chars) {
+            if (c < table.length) table[c] = true;
+        }
+    }
+
+    // the characters the FSM's matches can start with, or null if a match can start with any
+    static StartBytes build(FSM fsm) {
+        TreeSet<Character> found = new TreeSet<>();
+        for (int s : InnerLiteral.closure(fsm, 0)) {
+            // the empty string matches, or any character can start a match
+            if (fsm.isAccept(s) || fsm.isWildcard[s]) return null;
+            found.add(fsm.ch[s]);
+        }
+        // a newline can't be told from the end of a line
+        if (found.isEmpty() || found.contains('\n')) return null;
+        char[] chars = new char[found.size()];
+        int i = 0;
+        for (char c : found) chars[i++] = c;
+        return new StartBytes(chars);
+    }
+
+    // position of the first start character in the line at or after from, or -1
+    int first(CharSequence line, int from) {
+        int n = line.length();
+        for (int i = from; i < n; i++) {
+            char c = line.charAt(i);
+            if (c < table.length ? table[c] : Arrays.binarySearch(chars, c) >= 0) return i;
+        }
+        return -1;
+    }
+
+    // a new finder for byte buffers; each keeps its own count, so one per scanner
+    Finder finder() {
+        // in bytes, only Latin-1 start characters can turn up
+        byte[] bytes = new byte[chars.length];
+        int n = 0;
+        for (char c : chars) {
+            if (c < 256) bytes[n++] = (byte) c;
+        }
+        bytes = Arrays.copyOf(bytes, n);
+        if (VECTOR != null && n + 1 <= MAX_VECTOR_BYTES) {
+            try {
+                return (Finder) VECTOR.newInstance((Object) bytes);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // fall back to the table
+            }
+        }
+        return new TableFinder(table);
+    }
+
+    // the Vector API finder, if it was compiled and java was run with --add-modules jdk.incubator.vector
+    private static Constructor<?> vectorFinder() {
+        try {
+            return Class.forName("VectorStartFinder").getConstructor(byte[].class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // looks each byte up in a table
+    private static final class TableFinder implements Finder {
+        // what each byte is: 0 nothing, 1 a start byte, 2 a newline
+        private final byte[] kinds = new byte[256];
+        private long newlines;
+
+        TableFinder(boolean[] starts) {
+            for (int b = 0; b < 256; b++) {
+                if (starts[b]) kinds[b] = 1;
+            }
+            kinds['\n'] = 2;
+        }
+
+        @Override
+        public int find(ByteBuffer buf, int from, int to) {
+            for (int i = from; i < to; i++) {
+                byte kind = kinds[buf.get(i) & 0xFF];
+                if (kind == 1) return i;
+                if (kind == 2) newlines++;
+            }
+            return -1;
+        }
+
+        @Override
+        public long newlines() {
+            return newlines;
+        }
+    }
+}
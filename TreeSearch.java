@@ -0,0 +1,196 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+/**
+ * TreeSearch.java
+ *
+ * searches several files and directory trees in one run. directories are walked recursively
+ * and files are searched concurrently on a fixed pool of worker threads. each file's matches
+ * are buffered and written in walk order; the walk blocks once a bounded number of files are
+ * in flight, so huge trees don't pile up queued work or open files. a file's matches are kept
+ * in memory up to BUFFER_LIMIT and past that in a temporary file, so buffered output is bounded
+ * too, however much a file matches.
+ */
+public class TreeSearch {
+    // files in flight per worker thread
+    private static final int WINDOW_PER_THREAD = 4;
+    // most bytes of one file's matches kept in memory before they go to a temporary file
+    private static final int BUFFER_LIMIT = 1 << 20;
+
+    // how one file is searched, writing its matching lines to out
+    public interface FileSearch {
+        void search(Path path, OutputStream out) throws IOException;
+    }
+
+    private final int threads;
+    private final FileSearch search;
+    private final OutputStream out;
+    private final ExecutorService pool;
+    // where per-file errors are reported
+    private PrintStream errors = System.err;
+    // once true, no more files are started
+    private BooleanSupplier stop = () -> false;
+    private final ArrayDeque<Future<Matches>> window = new ArrayDeque<>();
+    private boolean failed;
+
+    public TreeSearch(int threads, FileSearch search, OutputStream out) {
+        this.threads = threads;
+        this.search = search;
+        this.out = out;
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "search-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // report per-file errors to err instead of standard error
+    public void setErrors(PrintStream err) {
+        this.errors = err;
+    }
+
+    // stop walking and searching once stop returns true, e.g. when any match will do
+    public void setStop(BooleanSupplier stop) {
+        this.stop = stop;
+    }
+
+    // search every file under the given paths, return false if any could not be read
+    public boolean run(List<String> paths) throws IOException {
+        try {
+            for (String p : paths) {
+                if (stop.getAsBoolean()) break;
+                Path root = Paths.get(p);
+                if (Files.isDirectory(root)) {
+                    walk(root);
+                } else {
+                    submit(root);
+                }
+            }
+            while (!window.isEmpty()) take(window.poll()).writeTo(out);
+            out.flush();
+        } finally {
+            pool.shutdownNow();
+            discard();
+        }
+        return !failed;
+    }
+
+    // walk a directory tree, submitting each regular file
+    private void walk(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (stop.getAsBoolean()) return FileVisitResult.TERMINATE;
+                if (attrs.isRegularFile()) submit(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                report(file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // queue one file, first writing out finished files if the window is full
+    private void submit(Path file) throws IOException {
+        if (window.size() >= threads * WINDOW_PER_THREAD) take(window.poll()).writeTo(out);
+        window.add(pool.submit(() -> {
+            Matches matches = new Matches();
+            // queued before the search was stopped
+            if (stop.getAsBoolean()) return matches;
+            try {
+                search.search(file, matches);
+            } catch (IOException e) {
+                report(file, e);
+            }
+            return matches;
+        }));
+    }
+
+    // method to delete the temporary files of searches that finished but were never written,
+    // when the run ends early on an error
+    private void discard() {
+        for (Future<Matches> result : window) {
+            try {
+                if (result.isDone() && !result.isCancelled()) result.get().delete();
+            } catch (InterruptedException | ExecutionException | IOException e) {
+                // nothing more to clean up for this one
+            }
+        }
+        window.clear();
+    }
+
+    // print a per-file error and keep going
+    private synchronized void report(Path file, IOException e) {
+        failed = true;
+        errors.println("Error reading file: " + file + ": " + e.getMessage());
+    }
+
+    // wait for a file to finish
+    private static Matches take(Future<Matches> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("search interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // one file's matches, in memory until there are more than BUFFER_LIMIT bytes of them, then
+    // in a temporary file
+    private static final class Matches extends OutputStream {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path spill;
+        private OutputStream file;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (file == null && memory.size() + len > BUFFER_LIMIT) {
+                // move what is in memory out to the file and keep writing there
+                spill = Files.createTempFile("research", ".out");
+                file = new BufferedOutputStream(Files.newOutputStream(spill), 1 << 16);
+                memory.writeTo(file);
+                memory = null;
+            }
+            if (file != null) {
+                file.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+        }
+
+        // method to copy the matches to out, deleting the temporary file if there is one
+        void writeTo(OutputStream out) throws IOException {
+            if (file == null) {
+                memory.writeTo(out);
+                return;
+            }
+            try {
+                file.close();
+                Files.copy(spill, out);
+            } finally {
+                delete();
+            }
+        }
+
+        // method to delete the temporary file, if there is one
+        void delete() throws IOException {
+            if (file == null) return;
+            file.close();
+            Files.deleteIfExists(spill);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * TrigramIndex.java
+ *
+ * an on-disk index of which blocks of a set of files contain each trigram (three consecutive
+ * bytes on one line). files are cut into blocks of about 16 KB at line boundaries; a
+ * TrigramQuery is answered with the blocks that could hold a matching line, so a selective
+ * search only reads those. updating the index only reads what changed: a file that has only
+ * been appended to has its last block and the new text indexed, other changed files are
+ * indexed again, and unchanged ones are skipped.
+ *
+ * the file format:
+ *
+ *     "REFI", version, block size
+ *     file count, then each file's path, size, modification time and tail checksum
+ *     block count, then each block's file, offset and length
+ *     trigram count, then a directory sorted by trigram: trigram, block count, postings offset
+ *     postings: each trigram's block numbers, as varint differences
+ */
+public class TrigramIndex {
+    static final int DEFAULT_BLOCK = 16 << 10;
+    private static final byte[] MAGIC = {'R', 'E', 'F', 'I'};
+    private static final int VERSION = 1;
+    // bytes at the end of a file checked to tell an append from a rewrite
+    private static final int TAIL = 4096;
+    private static final int DIRECTORY_ENTRY = 4 + 4 + 8;
+    // longest run of neighbouring blocks merged into one range to search
+    private static final long MAX_RANGE = 64L << 20;
+
+    private final int blockSize;
+    // indexed files: absolute path, size and modification time when indexed, and checksum of the tail
+    private final List<String> paths = new ArrayList<>();
+    private final Map<String, Integer> fileNumber = new HashMap<>();
+    private long[] sizes = new long[16];
+    private long[] mtimes = new long[16];
+    private long[] tails = new long[16];
+    // each file's blocks, in offset order
+    private final List<Postings> fileBlocks = new ArrayList<>();
+    // blocks, in number order
+    private int blockCount;
+    private int[] blockFile = new int[64];
+    private long[] blockOffset = new long[64];
+    private int[] blockLength = new int[64];
+
+    // the postings of a loaded index, mapped and searched in place
+    private ByteBuffer directory;
+    private int trigramCount;
+    private ByteBuffer postings;
+    // the postings while building or updating, block numbers in increasing order
+    private Map<Integer, Postings> building;
+
+    private TrigramIndex(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    // a new, empty index
+    static TrigramIndex create(int blockSize) {
+        TrigramIndex index = new TrigramIndex(blockSize);
+        index.building = new HashMap<>();
+        return index;
+    }
+
+    // return true if the file starts like an index
+    static boolean isIndex(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return Arrays.equals(in.readNBytes(MAGIC.length), MAGIC);
+        }
+    }
+
+    // map an index for searching
+    static TrigramIndex open(Path path) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        byte[] magic = new byte[MAGIC.length];
+        buf.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a trigram index: " + path);
+        int version = buf.getInt();
+        if (version != VERSION) throw new IOException("unsupported index version " + version + ": " + path);
+        TrigramIndex index = new TrigramIndex(buf.getInt());
+        int files = buf.getInt();
+        for (int f = 0; f < files; f++) {
+            byte[] name = new byte[buf.getInt()];
+            buf.get(name);
+            index.addFile(new String(name, StandardCharsets.UTF_8), buf.getLong(), buf.getLong(), buf.getLong());
+        }
+        int blocks = buf.getInt();
+        for (int b = 0; b < blocks; b++) index.addBlock(buf.getInt(), buf.getLong(), buf.getInt());
+        index.trigramCount = buf.getInt();
+        index.directory = buf.slice(buf.position(), index.trigramCount * DIRECTORY_ENTRY);
+        index.postings = buf.slice(buf.position() + index.trigramCount * DIRECTORY_ENTRY,
+                buf.limit() - buf.position() - index.trigramCount * DIRECTORY_ENTRY);
+        return index;
+    }
+
+    // load an index to update it, reading all of its postings
+    static TrigramIndex load(Path path) throws IOException {
+        TrigramIndex index = open(path);
+        index.building = new HashMap<>();
+        for (int i = 0; i < index.trigramCount; i++) {
+            int trigram = index.directory.getInt(i * DIRECTORY_ENTRY);
+            index.building.put(trigram, Postings.of(index.postings(i)));
+        }
+        index.directory = null;
+        index.postings = null;
+        return index;
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    // total number of blocks indexed
+    int blockCount() {
+        return blockCount;
+    }
+
+    // the absolute paths of the indexed files
+    List<String> paths() {
+        return Collections.unmodifiableList(paths);
+    }
+
+    // what updating a file did
+    enum Change { UNCHANGED, APPENDED, INDEXED }
+
+    // bring one file up to date, reading only what is new
+    Change update(Path file) throws IOException {
+        String name = file.toAbsolutePath().normalize().toString();
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        Integer f = fileNumber.get(name);
+        if (f != null && sizes[f] == size && mtimes[f] == mtime) return Change.UNCHANGED;
+        long from = 0;
+        Change change = Change.INDEXED;
+        if (f != null && appended(file, f, size)) {
+            // the last block may end in a partial line, index it again with the new text
+            Postings blocks = fileBlocks.get(f);
+            from = blocks.size > 0 ? blockOffset[blocks.blocks[blocks.size - 1]] : 0;
+            removeBlocks(f, from);
+            change = Change.APPENDED;
+        } else if (f != null) {
+            removeBlocks(f, 0);
+        }
+        if (f == null) f = addFile(name, 0, 0, 0);
+        indexFile(file, f, from, size);
+        sizes[f] = size;
+        mtimes[f] = mtime;
+        tails[f] = tailChecksum(file, size);
+        return change;
+    }
+
+    // forget every file not in keep
+    int retain(Set<String> keep) {
+        int removed = 0;
+        for (int f = 0; f < paths.size(); f++) {
+            if (paths.get(f) != null && !keep.contains(paths.get(f))) {
+                removeBlocks(f, 0);
+                fileNumber.remove(paths.get(f));
+                paths.set(f, null);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    // write the index, renumbering the blocks and files that are left; returns the number of trigrams
+    int write(Path path) throws IOException {
+        // blocks removed by updates are dropped and the rest numbered in order
+        int[] newFile = new int[paths.size()];
+        int files = 0;
+        for (int f = 0; f < paths.size(); f++) newFile[f] = paths.get(f) == null ? -1 : files++;
+        int[] newBlock = new int[blockCount];
+        int blocks = 0;
+        for (int b = 0; b < blockCount; b++) newBlock[b] = blockFile[b] < 0 ? -1 : blocks++;
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(blockSize);
+            out.writeInt(files);
+            for (int f = 0; f < paths.size(); f++) {
+                if (newFile[f] < 0) continue;
+                byte[] name = paths.get(f).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(sizes[f]);
+                out.writeLong(mtimes[f]);
+                out.writeLong(tails[f]);
+            }
+            out.writeInt(blocks);
+            for (int b = 0; b < blockCount; b++) {
+                if (newBlock[b] < 0) continue;
+                out.writeInt(newFile[blockFile[b]]);
+                out.writeLong(blockOffset[b]);
+                out.writeInt(blockLength[b]);
+            }
+
+            // encode the postings first, so the directory can give their offsets
+            int[] trigrams = building.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            int[] counts = new int[trigrams.length];
+            long[] offsets = new long[trigrams.length];
+            int kept = 0;
+            for (int t : trigrams) {
+                Postings p = building.get(t);
+                long offset = encoded.size();
+                int count = 0;
+                int prev = 0;
+                for (int i = 0; i < p.size; i++) {
+                    int b = newBlock[p.blocks[i]];
+                    if (b < 0) continue;
+                    writeVarint(encoded, b - prev);
+                    prev = b;
+                    count++;
+                }
+                if (count == 0) continue;
+                trigrams[kept] = t;
+                counts[kept] = count;
+                offsets[kept] = offset;
+                kept++;
+            }
+            trigramCount = kept;
+            out.writeInt(kept);
+            for (int i = 0; i < kept; i++) {
+                out.writeInt(trigrams[i]);
+                out.writeInt(counts[i]);
+                out.writeLong(offsets[i]);
+            }
+            encoded.writeTo(out);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return trigramCount;
+    }
+
+    // the blocks that could hold a line matching the query, in increasing order, or null for all
+    int[] candidates(TrigramQuery q) {
+        switch (q.op) {
+            case ALL:
+                return null;
+            case NONE:
+                return new int[0];
+            case TRIGRAM:
+                int i = find(q.trigram);
+                return i < 0 ? new int[0] : postings(i);
+            case AND: {
+                int[] result = null;
+                for (TrigramQuery arg : q.args) {
+                    int[] c = candidates(arg);
+                    if (c == null) continue;
+                    result = result == null ? c : intersect(result, c);
+                    if (result.length == 0) break;
+                }
+                return result;
+            }
+            default: {
+                int[] result = new int[0];
+                for (TrigramQuery arg : q.args) {
+                    int[] c = candidates(arg);
+                    if (c == null) return null;
+                    result = union(result, c);
+                }
+                return result;
+            }
+        }
+    }
+
+    // the byte ranges of a file to search, as start and end pairs, or null to search all of it.
+    // candidates comes from candidates(), and the file is checked for changes since it was indexed
+    long[] ranges(Path file, int[] candidates) throws IOException {
+        Integer f = fileNumber.get(file.toAbsolutePath().normalize().toString());
+        if (f == null || candidates == null) return null;
+        long size = Files.size(file);
+        boolean unchanged = size == sizes[f] && Files.getLastModifiedTime(file).toMillis() == mtimes[f];
+        if (!unchanged && !appended(file, f, size)) return null;
+        Postings blocks = fileBlocks.get(f);
+        // text appended since, from the last block on, hasn't been indexed
+        long tailFrom = unchanged || blocks.size == 0 ? size : blockOffset[blocks.blocks[blocks.size - 1]];
+        List<long[]> ranges = new ArrayList<>();
+        for (int k = 0; k < blocks.size; k++) {
+            int b = blocks.blocks[k];
+            if (blockOffset[b] >= tailFrom || Arrays.binarySearch(candidates, b) < 0) continue;
+            long start = blockOffset[b];
+            long end = start + blockLength[b];
+            // merge with the previous range when they touch
+            long[] previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (previous != null && previous[1] == start && end - previous[0] <= MAX_RANGE) {
+                previous[1] = end;
+            } else {
+                ranges.add(new long[] {start, end});
+            }
+        }
+        if (tailFrom < size) ranges.add(new long[] {tailFrom, size});
+        long[] result = new long[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            result[2 * i] = ranges.get(i)[0];
+            result[2 * i + 1] = ranges.get(i)[1];
+        }
+        return result;
+    }
+
+    // read the file from offset from to size, cutting it into blocks at line boundaries
+    private void indexFile(Path file, int f, long from, long size) throws IOException {
+        // trigrams of the current block, to add each block to a posting list only once
+        long[] seen = new long[1 << 18];
+        int[] touched = new int[1 << 16];
+        int distinct = 0;
+        byte[] buf = new byte[1 << 16];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long pos = from;
+            long blockStart = from;
+            // the two bytes before, or -1 at the start of a line
+            int b1 = -1;
+            int b2 = -1;
+            while (pos < size) {
+                int n = channel.read(ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, size - pos)), pos);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) {
+                    int b = buf[i] & 0xFF;
+                    if (b == '\n') {
+                        b1 = -1;
+                        b2 = -1;
+                        if (pos + i + 1 - blockStart >= blockSize) {
+                            distinct = endBlock(f, blockStart, pos + i + 1, seen, touched, distinct);
+                            blockStart = pos + i + 1;
+                        }
+                        continue;
+                    }
+                    if (b1 >= 0) {
+                        int t = b1 << 16 | b2 << 8 | b;
+                        if ((seen[t >>> 6] & 1L << t) == 0) {
+                            seen[t >>> 6] |= 1L << t;
+                            if (distinct == touched.length) touched = Arrays.copyOf(touched, distinct * 2);
+                            touched[distinct++] = t;
+                        }
+                    }
+                    b1 = b2;
+                    b2 = b;
+                }
+                pos += n;
+            }
+            if (pos > blockStart) endBlock(f, blockStart, pos, seen, touched, distinct);
+        }
+    }
+
+    // record a block and its trigrams, then clear them for the next one
+    private int endBlock(int f, long start, long end, long[] seen, int[] touched, int distinct) {
+        int b = addBlock(f, start, (int) (end - start));
+        for (int i = 0; i < distinct; i++) {
+            int t = touched[i];
+            seen[t >>> 6] = 0;
+            building.computeIfAbsent(t, k -> new Postings()).add(b);
+        }
+        return 0;
+    }
+
+    // return true if the file still starts with everything indexed from it
+    private boolean appended(Path file, int f, long size) throws IOException {
+        return size >= sizes[f] && tailChecksum(file, sizes[f]) == tails[f];
+    }
+
+    // CRC of the TAIL bytes before end
+    private static long tailChecksum(Path file, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long start = Math.max(0, end - TAIL);
+            ByteBuffer buf = ByteBuffer.allocate((int) (end - start));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, start + buf.position()) < 0) return -1;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buf.flip());
+            return crc.getValue();
+        }
+    }
+
+    // drop the file's blocks starting at or after offset from; their postings go when written
+    private void removeBlocks(int f, long from) {
+        Postings blocks = fileBlocks.get(f);
+        while (blocks.size > 0 && blockOffset[blocks.blocks[blocks.size - 1]] >= from) {
+            blockFile[blocks.blocks[--blocks.size]] = -1;
+        }
+    }
+
+    private int addFile(String name, long size, long mtime, long tail) {
+        int f = paths.size();
+        if (f == sizes.length) {
+            sizes = Arrays.copyOf(sizes, f * 2);
+            mtimes = Arrays.copyOf(mtimes, f * 2);
+            tails = Arrays.copyOf(tails, f * 2);
+        }
+        paths.add(name);
+        fileBlocks.add(new Postings());
+        fileNumber.put(name, f);
+        sizes[f] = size;
+        mtimes[f] = mtime;
+        tails[f] = tail;
+        return f;
+    }
+
+    private int addBlock(int f, long offset, int length) {
+        if (blockCount == blockFile.length) {
+            blockFile = Arrays.copyOf(blockFile, blockCount * 2);
+            blockOffset = Arrays.copyOf(blockOffset, blockCount * 2);
+            blockLength = Arrays.copyOf(blockLength, blockCount * 2);
+        }
+        blockFile[blockCount] = f;
+        blockOffset[blockCount] = offset;
+        blockLength[blockCount] = length;
+        fileBlocks.get(f).add(blockCount);
+        return blockCount++;
+    }
+
+    // position of a trigram in the directory, or -1
+    private int find(int trigram) {
+        int lo = 0;
+        int hi = trigramCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int t = directory.getInt(mid * DIRECTORY_ENTRY);
+            if (t < trigram) {
+                lo = mid + 1;
+            } else if (t > trigram) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // decode the blocks of the i'th trigram in the directory
+    private int[] postings(int i) {
+        int count = directory.getInt(i * DIRECTORY_ENTRY + 4);
+        int pos = (int) directory.getLong(i * DIRECTORY_ENTRY + 8);
+        int[] blocks = new int[count];
+        int prev = 0;
+        for (int k = 0; k < count; k++) {
+            int delta = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = postings.get(pos++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            prev += delta;
+            blocks[k] = prev;
+        }
+        return blocks;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    // a growing list of block numbers
+    private static final class Postings {
+        int[] blocks = new int[4];
+        int size;
+
+        static Postings of(int[] blocks) {
+            Postings p = new Postings();
+            p.blocks = blocks.length == 0 ? new int[4] : blocks;
+            p.size = blocks.length;
+            return p;
+        }
+
+        void add(int block) {
+            if (size == blocks.length) blocks = Arrays.copyOf(blocks, size * 2);
+            blocks[size++] = block;
+        }
+    }
+}
@@ -0,0 +1,449 @@
+import java.util.*;
+
+/**
+ * TrigramQuery.java
+ *
+ * a boolean query over trigrams that every line matching an FSM must satisfy, used with a
+ * TrigramIndex to skip blocks of text that can't contain a match. the FSM is taken apart the
+ * way the regexp was put together: states every path goes through split it into a
+ * concatenation (AND), branches into alternatives (OR), and loops and wildcards, which could
+ * be anything, add no constraint. each piece is summarised by the strings it matches exactly
+ * while that set is small, or by the prefixes and suffixes its strings start and end with and
+ * the trigrams they must contain, as in Russ Cox's "Regular Expression Matching with a
+ * Trigram Index". a query may let through lines that don't match, never the other way round.
+ */
+public class TrigramQuery {
+    enum Op { ALL, NONE, AND, OR, TRIGRAM }
+
+    static final TrigramQuery ALL = new TrigramQuery(Op.ALL, 0, List.of());
+    static final TrigramQuery NONE = new TrigramQuery(Op.NONE, 0, List.of());
+
+    // exact string sets are given up beyond this many strings
+    private static final int MAX_EXACT = 16;
+    // prefix and suffix sets are shortened beyond this many strings
+    private static final int MAX_SET = 64;
+    // terms kept in one AND or OR; a longer AND is cut short, a longer OR matches everything
+    private static final int MAX_TERMS = 64;
+    // larger FSMs only use the literals every match contains
+    private static final int MAX_PLAN_STATES = 1 << 14;
+
+    final Op op;
+    // the three bytes of a TRIGRAM, packed as b0 << 16 | b1 << 8 | b2
+    final int trigram;
+    final List<TrigramQuery> args;
+
+    private TrigramQuery(Op op, int trigram, List<TrigramQuery> args) {
+        this.op = op;
+        this.trigram = trigram;
+        this.args = args;
+    }
+
+    // pack three bytes into a trigram key
+    static int key(int b0, int b1, int b2) {
+        return (b0 & 0xFF) << 16 | (b1 & 0xFF) << 8 | (b2 & 0xFF);
+    }
+
+    // a line must contain every trigram of s; strings under three characters say nothing
+    static TrigramQuery of(String s) {
+        TrigramQuery q = ALL;
+        for (int i = 0; i + 3 <= s.length(); i++) {
+            q = and(q, new TrigramQuery(Op.TRIGRAM, key(s.charAt(i), s.charAt(i + 1), s.charAt(i + 2)), List.of()));
+        }
+        return q;
+    }
+
+    // a line must contain one of the strings
+    static TrigramQuery anyOf(Collection<String> strings) {
+        TrigramQuery q = NONE;
+        for (String s : strings) q = or(q, of(s));
+        return q;
+    }
+
+    static TrigramQuery and(TrigramQuery a, TrigramQuery b) {
+        if (a.op == Op.NONE || b.op == Op.NONE) return NONE;
+        if (a.op == Op.ALL) return b;
+        if (b.op == Op.ALL) return a;
+        LinkedHashSet<TrigramQuery> terms = new LinkedHashSet<>();
+        flatten(a, Op.AND, terms);
+        flatten(b, Op.AND, terms);
+        List<TrigramQuery> kept = new ArrayList<>(terms);
+        // dropping terms only lets more through
+        if (kept.size() > MAX_TERMS) kept = kept.subList(0, MAX_TERMS);
+        return kept.size() == 1 ? kept.get(0) : new TrigramQuery(Op.AND, 0, List.copyOf(kept));
+    }
+
+    static TrigramQuery or(TrigramQuery a, TrigramQuery b) {
+        if (a.op == Op.ALL || b.op == Op.ALL) return ALL;
+        if (a.op == Op.NONE) return b;
+        if (b.op == Op.NONE) return a;
+        LinkedHashSet<TrigramQuery> terms = new LinkedHashSet<>();
+        flatten(a, Op.OR, terms);
+        flatten(b, Op.OR, terms);
+        if (terms.size() > MAX_TERMS) return ALL;
+        return terms.size() == 1 ? terms.iterator().next() : new TrigramQuery(Op.OR, 0, List.copyOf(terms));
+    }
+
+    // add the terms of q to an AND or OR being built, merging nested ones of the same kind
+    private static void flatten(TrigramQuery q, Op op, Set<TrigramQuery> terms) {
+        if (q.op == op) {
+            terms.addAll(q.args);
+        } else {
+            terms.add(q);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TrigramQuery)) return false;
+        TrigramQuery q = (TrigramQuery) o;
+        return op == q.op && trigram == q.trigram && args.equals(q.args);
+    }
+
+    @Override
+    public int hashCode() {
+        return (op.hashCode() * 31 + trigram) * 31 + args.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        switch (op) {
+            case ALL: return "+";
+            case NONE: return "-";
+            case TRIGRAM:
+                return "\"" + (char) (trigram >>> 16) + (char) (trigram >>> 8 & 0xFF) + (char) (trigram & 0xFF) + "\"";
+            default:
+                StringJoiner j = new StringJoiner(op == Op.AND ? " " : " | ", "(", ")");
+                for (TrigramQuery q : args) j.add(q.toString());
+                return j.toString();
+        }
+    }
+
+    // the query for lines that could match the FSM
+    static TrigramQuery plan(FSM fsm) {
+        if (fsm.size > MAX_PLAN_STATES) {
+            // too big to take apart cheaply, fall back on the literals every match contains
+            Literals literals = Literals.analyse(fsm);
+            TrigramQuery q = ALL;
+            for (String text : literals.text) {
+                if (isAscii(text)) q = and(q, of(text));
+            }
+            return q;
+        }
+        Info info = new Planner(fsm).info(0, fsm.size);
+        return info.query();
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+
+    // what is known about the strings matched by part of the FSM
+    private static final class Info {
+        boolean emptyable;
+        // every string it matches, or null if there are too many
+        Set<String> exact;
+        // when exact is null: strings that every match starts or ends with
+        Set<String> prefix;
+        Set<String> suffix;
+        // trigrams every match contains
+        TrigramQuery match = ALL;
+
+        static Info exactly(String... strings) {
+            Info i = new Info();
+            i.exact = new LinkedHashSet<>(Arrays.asList(strings));
+            i.emptyable = i.exact.contains("");
+            return i;
+        }
+
+        // any string at all, or any single character
+        static Info anything(boolean emptyable) {
+            Info i = new Info();
+            i.emptyable = emptyable;
+            i.prefix = new LinkedHashSet<>(List.of(""));
+            i.suffix = new LinkedHashSet<>(List.of(""));
+            return i;
+        }
+
+        Set<String> prefixes() {
+            return exact != null ? exact : prefix;
+        }
+
+        Set<String> suffixes() {
+            return exact != null ? exact : suffix;
+        }
+
+        // the trigrams of the exact strings, when they are about to be forgotten
+        TrigramQuery exactQuery() {
+            return exact != null ? anyOf(exact) : ALL;
+        }
+
+        static Info concat(Info x, Info y) {
+            Info r = new Info();
+            r.emptyable = x.emptyable && y.emptyable;
+            r.match = and(x.match, y.match);
+            if (x.exact != null && y.exact != null && (long) x.exact.size() * y.exact.size() <= MAX_EXACT) {
+                r.exact = cross(x.exact, y.exact);
+                return r;
+            }
+            r.prefix = x.exact != null ? cross(x.exact, y.prefixes()) : new LinkedHashSet<>(x.prefix);
+            if (x.emptyable) r.prefix.addAll(y.prefixes());
+            r.suffix = y.exact != null ? cross(x.suffixes(), y.exact) : new LinkedHashSet<>(y.suffix);
+            if (y.emptyable) r.suffix.addAll(x.suffixes());
+            r.match = and(r.match, and(x.exactQuery(), y.exactQuery()));
+            // the trigrams where the two halves meet
+            if ((long) x.suffixes().size() * y.prefixes().size() <= MAX_SET) {
+                r.match = and(r.match, anyOf(cross(x.suffixes(), y.prefixes())));
+            }
+            r.trim();
+            return r;
+        }
+
+        static Info alternate(Info x, Info y) {
+            Info r = new Info();
+            r.emptyable = x.emptyable || y.emptyable;
+            if (x.exact != null && y.exact != null && x.exact.size() + y.exact.size() <= MAX_EXACT) {
+                r.exact = new LinkedHashSet<>(x.exact);
+                r.exact.addAll(y.exact);
+                r.match = or(x.match, y.match);
+                return r;
+            }
+            r.prefix = new LinkedHashSet<>(x.prefixes());
+            r.prefix.addAll(y.prefixes());
+            r.suffix = new LinkedHashSet<>(x.suffixes());
+            r.suffix.addAll(y.suffixes());
+            r.match = or(and(x.match, x.exactQuery()), and(y.match, y.exactQuery()));
+            r.trim();
+            return r;
+        }
+
+        // fold the prefixes' and suffixes' trigrams into match and keep only the characters that
+        // can still form a trigram with a neighbour, fewer if the sets are still too big
+        void trim() {
+            match = and(match, and(anyOf(prefix), anyOf(suffix)));
+            for (int keep = 2; ; keep--) {
+                prefix = shorten(prefix, keep, true);
+                suffix = shorten(suffix, keep, false);
+                if (keep == 0 || prefix.size() + suffix.size() <= MAX_SET) break;
+            }
+        }
+
+        TrigramQuery query() {
+            if (exact != null) return and(match, anyOf(exact));
+            return and(match, and(anyOf(prefix), anyOf(suffix)));
+        }
+
+        private static Set<String> shorten(Set<String> strings, int keep, boolean start) {
+            Set<String> result = new LinkedHashSet<>();
+            for (String s : strings) {
+                if (s.length() <= keep) {
+                    result.add(s);
+                } else {
+                    result.add(start ? s.substring(0, keep) : s.substring(s.length() - keep));
+                }
+            }
+            return result;
+        }
+
+        private static Set<String> cross(Set<String> a, Set<String> b) {
+            Set<String> result = new LinkedHashSet<>();
+            for (String s : a) {
+                for (String t : b) result.add(s + t);
+            }
+            return result;
+        }
+    }
+
+    // takes an FSM apart between pairs of states; the accepting states all lead to a virtual
+    // sink, so the whole FSM is the part between state 0 and the sink
+    private static final class Planner {
+        private static final int[] NO_STATES = new int[0];
+        private final FSM fsm;
+        private final int sink;
+        private final Map<Long, Info> memo = new HashMap<>();
+        // scratch space for walking a part
+        private final int[] mark;
+        private final int[] stack;
+        private final int[] post;
+        private final int[] idom;
+        private final int[] order;
+        private final int[] edge;
+        private int gen;
+
+        Planner(FSM fsm) {
+            this.fsm = fsm;
+            this.sink = fsm.size;
+            int n = fsm.size + 1;
+            mark = new int[n];
+            stack = new int[n];
+            post = new int[n];
+            idom = new int[n];
+            order = new int[n];
+            edge = new int[n];
+        }
+
+        // what is known about the strings read on a path from state from to its first arrival at to
+        Info info(int from, int to) {
+            if (from == to) return Info.exactly("");
+            long k = (long) from << 32 | to;
+            Info known = memo.get(k);
+            if (known != null) return known;
+            Info result = compute(from, to);
+            memo.put(k, result);
+            return result;
+        }
+
+        private Info compute(int from, int to) {
+            int count = postorder(from, to);
+            if (mark[to] != gen) {
+                // no way through, nothing matches
+                return Info.exactly();
+            }
+            int[] chain = dominators(count, from, to);
+            if (chain.length > 2) {
+                // everything passes through these states in turn: a concatenation
+                Info result = info(chain[0], chain[1]);
+                for (int i = 1; i + 1 < chain.length; i++) result = Info.concat(result, info(chain[i], chain[i + 1]));
+                return result;
+            }
+            int[] next = successors(from);
+            if (reachesItself(from, to, next)) {
+                // a loop, matching any number of repeats; could be anything
+                return Info.anything(true);
+            }
+            if (from == sink || fsm.isAccept(from)) return info(sink, to);
+            if (fsm.isBranch(from)) {
+                Info result = null;
+                for (int t : next) {
+                    Info alternative = info(t, to);
+                    result = result == null ? alternative : Info.alternate(result, alternative);
+                }
+                return result == null ? Info.exactly() : result;
+            }
+            char c = fsm.ch[from];
+            // the index is built from bytes, a character outside ASCII is just some character
+            Info first = fsm.isWildcard[from] || c >= 0x80 ? Info.anything(false) : Info.exactly(String.valueOf(c));
+            return next.length == 0 ? Info.exactly() : Info.concat(first, info(next[0], to));
+        }
+
+        // number the states reachable from from without passing through to in postorder;
+        // marks them (and to, if reached) with the current generation
+        private int postorder(int from, int to) {
+            int g = ++gen;
+            int count = 0;
+            int top = 0;
+            stack[top++] = from;
+            mark[from] = g;
+            edge[from] = 0;
+            while (top > 0) {
+                int s = stack[top - 1];
+                int[] succ = s == to ? NO_STATES : successors(s);
+                if (edge[s] < succ.length) {
+                    int t = succ[edge[s]++];
+                    if (mark[t] != g) {
+                        mark[t] = g;
+                        edge[t] = 0;
+                        stack[top++] = t;
+                    }
+                } else {
+                    top--;
+                    post[s] = count;
+                    order[count++] = s;
+                }
+            }
+            return count;
+        }
+
+        // the states every path from from to to passes through, in order (Cooper, Harvey and Kennedy)
+        private int[] dominators(int count, int from, int to) {
+            int g = gen;
+            List<List<Integer>> preds = new ArrayList<>(count);
+            Map<Integer, Integer> index = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                index.put(order[i], i);
+                preds.add(new ArrayList<>());
+            }
+            for (int i = 0; i < count; i++) {
+                int s = order[i];
+                if (s == to) continue;
+                for (int t : successors(s)) {
+                    if (mark[t] == g) preds.get(index.get(t)).add(s);
+                }
+            }
+            for (int i = 0; i < count; i++) idom[order[i]] = -1;
+            idom[from] = from;
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int i = count - 1; i >= 0; i--) {
+                    int s = order[i];
+                    if (s == from) continue;
+                    int best = -1;
+                    for (int p : preds.get(i)) {
+                        if (idom[p] == -1) continue;
+                        best = best == -1 ? p : intersect(p, best);
+                    }
+                    if (best != -1 && idom[s] != best) {
+                        idom[s] = best;
+                        changed = true;
+                    }
+                }
+            }
+            List<Integer> chain = new ArrayList<>();
+            for (int s = to; ; s = idom[s]) {
+                chain.add(s);
+                if (s == from) break;
+            }
+            int[] result = new int[chain.size()];
+            for (int i = 0; i < result.length; i++) result[i] = chain.get(result.length - 1 - i);
+            return result;
+        }
+
+        private int intersect(int a, int b) {
+            while (a != b) {
+                while (post[a] < post[b]) a = idom[a];
+                while (post[b] < post[a]) b = idom[b];
+            }
+            return a;
+        }
+
+        // return true if from can be reached again from its successors without passing through to
+        private boolean reachesItself(int from, int to, int[] next) {
+            int g = ++gen;
+            int top = 0;
+            for (int t : next) {
+                if (t != to && mark[t] != g) {
+                    mark[t] = g;
+                    stack[top++] = t;
+                }
+            }
+            while (top > 0) {
+                int s = stack[--top];
+                if (s == from) return true;
+                for (int t : successors(s)) {
+                    if (t != to && mark[t] != g) {
+                        mark[t] = g;
+                        stack[top++] = t;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // states that can follow s, accepting states leading to the sink
+        private int[] successors(int s) {
+            if (s == sink) return new int[0];
+            if (fsm.isAccept(s)) return new int[] {sink};
+            int n1 = fsm.next1[s];
+            if (fsm.isBranch(s)) {
+                int n2 = fsm.next2[s];
+                if (n1 != -1 && n2 != -1 && n1 != n2) return new int[] {n1, n2};
+                if (n1 == -1 && n2 == -1) return new int[0];
+                return new int[] {n1 != -1 ? n1 : n2};
+            }
+            return n1 != -1 ? new int[] {n1} : new int[0];
+        }
+    }
+}
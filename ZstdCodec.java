@@ -0,0 +1,88 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.List;
+
+/**
+ * ZstdCodec.java
+ *
+ * zstd, which the JDK can't decode, so the zstd command does it in a separate process. a file is
+ * named on its command line; a stream is copied to its standard input by another thread.
+ */
+final class ZstdCodec implements Codec {
+    private static final byte[] MAGIC = {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd};
+
+    @Override
+    public byte[] magic() {
+        return MAGIC;
+    }
+
+    @Override
+    public InputStream decode(InputStream in) throws IOException {
+        Process process = start(List.of("zstd", "-dcq"));
+        Thread copier = new Thread(() -> {
+            try (OutputStream stdin = process.getOutputStream(); in) {
+                in.transferTo(stdin);
+            } catch (IOException e) {
+                // zstd has exited, and says why on its standard error
+            }
+        }, "zstd input");
+        copier.setDaemon(true);
+        copier.start();
+        return new Output(process);
+    }
+
+    @Override
+    public InputStream decode(Path path) throws IOException {
+        Process process = start(List.of("zstd", "-dcq", "--", path.toString()));
+        process.getOutputStream().close();
+        return new Output(process);
+    }
+
+    private static Process start(List<String> command) throws IOException {
+        try {
+            return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        } catch (IOException e) {
+            throw new IOException("can't run zstd to decompress: " + e.getMessage());
+        }
+    }
+
+    // what zstd writes, ending in an error if it fails
+    private static final class Output extends FilterInputStream {
+        private final Process process;
+
+        Output(Process process) {
+            super(process.getInputStream());
+            this.process = process;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) checkExit();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) checkExit();
+            return n;
+        }
+
+        private void checkExit() throws IOException {
+            try {
+                int status = process.waitFor();
+                if (status != 0) throw new IOException("zstd failed with status " + status);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            process.destroy();
+        }
+    }
+}
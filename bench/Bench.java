@@ -0,0 +1,231 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Bench.java
+ *
+ * benchmarks for the compile and search hot paths, run by bench.sh. each benchmark is warmed
+ * up, then timed over several measurement iterations; alongside the time per operation it
+ * records the bytes allocated per operation by the benchmark thread, so allocation creeping
+ * into the matching loop shows up as a non-zero B/op.
+ *
+ *     java Bench [--only <name>] [--sizes <MB,MB,...>] [--csv <file>]
+ */
+public class Bench {
+    private static final int WARMUP = 5;
+    private static final int MEASURE = 10;
+    // each iteration runs for at least this long
+    private static final long ITERATION_NANOS = 200_000_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final String only;
+    private final PrintStream csv;
+    // keeps results alive so the JIT can't drop the work
+    private long sink;
+
+    private Bench(String only, PrintStream csv) {
+        this.only = only;
+        this.csv = csv;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String only = null;
+        String csvFile = null;
+        int[] sizes = {1, 16, 256};
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--only") && i + 1 < args.length) {
+                only = args[++i];
+            } else if (args[i].equals("--sizes") && i + 1 < args.length) {
+                sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (args[i].equals("--csv") && i + 1 < args.length) {
+                csvFile = args[++i];
+            } else {
+                System.err.println("Usage: java Bench [--only <name>] [--sizes <MB,MB,...>] [--csv <file>]");
+                System.exit(1);
+            }
+        }
+        PrintStream csv = null;
+        if (csvFile != null) {
+            // results are appended, so the header only goes at the top of a new file
+            boolean fresh = !Files.exists(Paths.get(csvFile)) || Files.size(Paths.get(csvFile)) == 0;
+            csv = new PrintStream(new FileOutputStream(csvFile, true));
+            if (fresh) csv.println("benchmark,ns_per_op,stddev_ns,bytes_per_op,mb_per_s");
+        }
+        Bench bench = new Bench(only, csv);
+        // stddev is the standard deviation of ns/op across the measurement iterations
+        System.out.printf("%-44s %14s %12s %12s%n", "benchmark", "ns/op", "stddev", "B/op");
+        bench.compile();
+        bench.search();
+        bench.files(sizes);
+        if (csv != null) csv.close();
+    }
+
+    // Compiler on small, large and pathological regexps
+    private void compile() {
+        Map<String, String> regexps = new LinkedHashMap<>();
+        regexps.put("small", "(a|b)*abb");
+        regexps.put("words", "the (cat|dog|bird) (was )?hug+ed");
+        StringBuilder alternation = new StringBuilder("w0");
+        for (int i = 1; i < 1000; i++) alternation.append("|w").append(i);
+        regexps.put("alternation-1000", alternation.toString());
+        StringBuilder concat = new StringBuilder();
+        for (int i = 0; i < 5000; i++) concat.append((char) ('a' + i % 26));
+        regexps.put("concat-5000", concat.toString());
+        regexps.put("nested-200", "(".repeat(200) + "a" + ")".repeat(200));
+        regexps.put("nested-star-100", "(".repeat(100) + "a" + ")*".repeat(100));
+        regexps.put("star-of-star", "((a*)*b*)*c");
+        // generated patterns at scale, where anything worse than linear or a deep stack shows up
+        StringBuilder bigAlternation = new StringBuilder("w0");
+        for (int i = 1; i < 100_000; i++) bigAlternation.append("|w").append(i);
+        regexps.put("alternation-100000", bigAlternation.toString());
+        StringBuilder bigConcat = new StringBuilder();
+        for (int i = 0; i < 1_000_000; i++) bigConcat.append((char) ('a' + i % 26));
+        regexps.put("concat-1000000", bigConcat.toString());
+        regexps.put("nested-100000", "(".repeat(100_000) + "a" + ")".repeat(100_000));
+
+        for (Map.Entry<String, String> e : regexps.entrySet()) {
+            String re = e.getValue();
+            run("compile.parse." + e.getKey(), 0, () -> {
+                Compiler c = new Compiler();
+                c.optimise = false;
+                return c.build(List.of(re)).size;
+            });
+            run("compile.optimise." + e.getKey(), 0, () -> new Compiler().build(List.of(re)).size);
+        }
+    }
+
+    // each engine over short and long lines that do and don't match
+    private void search() {
+        String re = "hug+ed (the|a) (cat|dog)";
+        FSM fsm = new Compiler().build(List.of(re));
+        Map<String, Supplier<Engine>> engines = new LinkedHashMap<>();
+        engines.put("nfa", () -> new NFA(fsm));
+        engines.put("lazydfa", () -> new LazyDFA(fsm, CompiledPattern.DEFAULT_CACHE_BYTES, new NFA(fsm)));
+        engines.put("bitparallel", () -> new BitParallel(fsm));
+        engines.put("innerliteral", () -> InnerLiteral.build(fsm, new BitParallel(fsm)));
+        DFA dfa = DFA.build(fsm, DFA.DEFAULT_MAX_STATES);
+        engines.put("dfa", () -> dfa);
+        GeneratedMatcher generated = GeneratedMatcher.of(dfa);
+        if (generated != null) engines.put("generated", () -> generated);
+
+        String filler = "the mouse was found by the bird . ";
+        Map<String, String> lines = new LinkedHashMap<>();
+        lines.put("short-match", "the bird hugged the cat .");
+        lines.put("short-miss", "the bird hugged the fish .");
+        lines.put("long-match", filler.repeat(300) + "hugged a dog");
+        lines.put("long-miss", filler.repeat(300) + "hugged a fish");
+
+        for (Map.Entry<String, Supplier<Engine>> e : engines.entrySet()) {
+            Engine engine = e.getValue().get();
+            for (Map.Entry<String, String> l : lines.entrySet()) {
+                String line = l.getValue();
+                run("search." + e.getKey() + "." + l.getKey(), line.length(), () -> engine.search(line) ? 1 : 0);
+            }
+        }
+    }
+
+    // whole-file throughput on generated corpora, through the byte scanner and the reader path
+    private void files(int[] sizes) throws IOException {
+        CompiledPattern pattern = new Compiler().compile("hug+ed (the|a) (cat|dog)");
+        Path dir = Files.createTempDirectory("bench");
+        try {
+            for (int mb : sizes) {
+                Path corpus = dir.resolve("corpus-" + mb + "mb.txt");
+                generate(corpus, (long) mb << 20);
+                long bytes = Files.size(corpus);
+                OutputStream discard = OutputStream.nullOutputStream();
+                run("file.mmap." + mb + "MB", bytes, () -> {
+                    ByteScanner scanner = new ByteScanner(pattern.newEngine(), pattern.prefilter(), discard);
+                    scanner.scanFile(corpus);
+                    return scanner.matched();
+                });
+                run("file.stream." + mb + "MB", bytes, () -> {
+                    try (InputStream in = Files.newInputStream(corpus)) {
+                        return pattern.scan(in, discard);
+                    }
+                });
+                Files.delete(corpus);
+            }
+        } finally {
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // sentences from the example vocabulary, about one line in fifty matching
+    private static void generate(Path path, long size) throws IOException {
+        String[] words = {"the", "a", "cat", "dog", "bird", "fish", "mouse", "king", "zebra",
+                "was", "found", "by", "hugged", "chased", "kissed", "cheated", "jumbo", "."};
+        Random random = new Random(1);
+        try (BufferedWriter out = Files.newBufferedWriter(path)) {
+            long written = 0;
+            StringBuilder line = new StringBuilder();
+            while (written < size) {
+                line.setLength(0);
+                int n = 4 + random.nextInt(12);
+                for (int i = 0; i < n; i++) line.append(words[random.nextInt(words.length)]).append(' ');
+                if (random.nextInt(50) == 0) line.append("hugged the cat");
+                out.write(line.toString());
+                out.newLine();
+                written += line.length() + 1;
+            }
+        }
+    }
+
+    // something to measure; returns a value so the work can't be optimised away
+    private interface Op {
+        long run() throws IOException;
+    }
+
+    // warm up, measure, and report time and allocation per operation; bytesPerOp is the input
+    // scanned by one operation, for a throughput figure, or 0
+    private void run(String name, long bytesPerOp, Op op) {
+        if (only != null && !name.contains(only)) return;
+        try {
+            long thread = Thread.currentThread().getId();
+            // calibrate how many operations make up an iteration
+            long batch = 1;
+            while (true) {
+                long start = System.nanoTime();
+                for (long i = 0; i < batch; i++) sink += op.run();
+                if (System.nanoTime() - start >= ITERATION_NANOS / 10 || batch >= 1L << 30) break;
+                batch *= 2;
+            }
+            double[] nanosPerOp = new double[MEASURE];
+            long allocated = 0;
+            long ops = 0;
+            for (int iter = -WARMUP; iter < MEASURE; iter++) {
+                long count = 0;
+                long bytesBefore = THREADS.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                long elapsed;
+                do {
+                    for (long i = 0; i < batch; i++) sink += op.run();
+                    count += batch;
+                    elapsed = System.nanoTime() - start;
+                } while (elapsed < ITERATION_NANOS);
+                long bytesAfter = THREADS.getThreadAllocatedBytes(thread);
+                if (iter >= 0) {
+                    nanosPerOp[iter] = (double) elapsed / count;
+                    allocated += bytesAfter - bytesBefore;
+                    ops += count;
+                }
+            }
+            double mean = Arrays.stream(nanosPerOp).average().orElse(0);
+            double variance = Arrays.stream(nanosPerOp).map(x -> (x - mean) * (x - mean)).sum() / Math.max(1, MEASURE - 1);
+            double stddev = Math.sqrt(variance);
+            double bytesPerCall = (double) allocated / ops;
+            // megabytes of input per second, for the benchmarks that scan text
+            double mbPerSecond = bytesPerOp * 1e9 / mean / (1 << 20);
+            String throughput = bytesPerOp > 0 ? String.format("   %.1f MB/s", mbPerSecond) : "";
+            System.out.printf("%-44s %14.1f %12.1f %12.1f%s%n", name, mean, stddev, bytesPerCall, throughput);
+            if (csv != null) csv.printf("%s,%.1f,%.1f,%.1f,%.1f%n", name, mean, stddev, bytesPerCall, mbPerSecond);
+        } catch (IOException e) {
+            System.err.println(name + ": " + e.getMessage());
+        }
+    }
+}
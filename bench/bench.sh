@@ -0,0 +1,15 @@
+#!/bin/bash
+# Builds the sources and runs each benchmark group in a fresh JVM, so one group's
+# JIT profile and heap don't skew the next.
+#   bench/bench.sh                      all groups, corpora of 1, 16 and 256 MB
+#   bench/bench.sh --sizes 1,1024       whole-file throughput on 1 MB and 1 GB
+#   bench/bench.sh --csv results.csv    also append the results to a CSV file
+cd "$(dirname "$0")/.." || exit 1
+OUT=bench/out
+mkdir -p "$OUT"
+javac -encoding UTF-8 -d "$OUT" *.java bench/Bench.java || exit 1
+
+JVM_OPTS="-Xms2g -Xmx2g -XX:+UseParallelGC"
+for group in compile. search. file.; do
+  java $JVM_OPTS -cp "$OUT" Bench --only "$group" "$@" || exit 1
+done
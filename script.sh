@@ -4,6 +4,9 @@ GREEN='\033[0;32m'
 RED='\033[0;31m'
 NC='\033[0m' # No Color
 
+# The sources and the test text are UTF-8, so read and write them as UTF-8 whatever the locale
+export LC_ALL=C.UTF-8
+
 # Temporary files for testing
 TEMP_FILE="test_string.txt"
 OUTPUT_FILE="output.txt"
@@ -148,7 +151,7 @@ declare -a test_cases=(
 
 # Compile all Java files
 echo "Compiling Java files..."
-javac *.java
+javac -encoding UTF-8 *.java
 
 # Run all tests
 echo "===== RUNNING REGEX TESTS ====="
@@ -168,8 +171,488 @@ for test_case in "${test_cases[@]}"; do
   total=$((total + 1))
 done
 
+# Function to compile a regex to FSM_FILE (with any REcompile options in COMPILE_OPTS), run
+# REsearch on it with the given options and compare everything it prints with what is expected
+run_output_test() {
+  local regex="$1"
+  local expected="$2"
+  shift 2
+
+  java REcompile $COMPILE_OPTS "$regex" >"$FSM_FILE" 2>/dev/null
+  output=$(java REsearch --fsm "$FSM_FILE" "$@" 2>&1)
+
+  if [[ "$output" == "$expected" ]]; then
+    echo -e "${GREEN}SUCCESS: '$regex' with $* printed what was expected${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: '$regex' with $*${NC}"
+    echo -e "${RED}Expected: $expected${NC}"
+    echo -e "${RED}Got:      $output${NC}"
+    return 1
+  fi
+}
+
+# Function to run a search option test with the text piped to standard input instead of named
+run_stdin_test() {
+  local regex="$1"
+  local expected="$2"
+  local file="$3"
+  shift 3
+
+  java REcompile $COMPILE_OPTS "$regex" >"$FSM_FILE" 2>/dev/null
+  output=$(java REsearch --fsm "$FSM_FILE" "$@" <"$file" 2>&1)
+
+  if [[ "$output" == "$expected" ]]; then
+    echo -e "${GREEN}SUCCESS: '$regex' with ${*:-no options} on standard input printed what was expected${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: '$regex' with ${*:-no options} on standard input${NC}"
+    echo -e "${RED}Expected: $expected${NC}"
+    echo -e "${RED}Got:      $output${NC}"
+    return 1
+  fi
+}
+
+# Function to check that searching a file on several threads prints what one thread does
+run_parallel_test() {
+  local regex="$1"
+  local file="$2"
+
+  java REcompile $COMPILE_OPTS "$regex" >"$FSM_FILE" 2>/dev/null
+  single=$(java REsearch --fsm "$FSM_FILE" "$file" 2>&1)
+  output=$(java REsearch --fsm "$FSM_FILE" -j 2 "$file" 2>&1)
+
+  if [[ "$output" == "$single" ]]; then
+    echo -e "${GREEN}SUCCESS: '$regex' with -j 2 printed what one thread did${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: '$regex' with -j 2 differs from one thread${NC}"
+    echo -e "${RED}One thread: $single${NC}"
+    echo -e "${RED}-j 2:       $output${NC}"
+    return 1
+  fi
+}
+
+# Function to check CompiledPattern's byte entry points: prints the offset find returns, then
+# the count and lines scan copies, for a regex over LIBRARY_TEXT
+LIBRARY_TEST="test_library.java"
+LIBRARY_TEXT="test_library.txt"
+run_library_test() {
+  local regex="$1"
+  local expected="$2"
+
+  output=$(java -cp . "$LIBRARY_TEST" "$regex" "$LIBRARY_TEXT" 2>&1)
+
+  if [[ "$output" == "$expected" ]]; then
+    echo -e "${GREEN}SUCCESS: CompiledPattern.find and scan for '$regex' gave what was expected${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: CompiledPattern.find and scan for '$regex'${NC}"
+    echo -e "${RED}Expected: $expected${NC}"
+    echo -e "${RED}Got:      $output${NC}"
+    return 1
+  fi
+}
+
+# Function to check the exit status of a search, which is all -q gives
+run_status_test() {
+  local regex="$1"
+  local expected="$2"
+  shift 2
+
+  java REcompile $COMPILE_OPTS "$regex" >"$FSM_FILE" 2>/dev/null
+  java REsearch --fsm "$FSM_FILE" "$@" >/dev/null 2>&1
+  status=$?
+
+  if [[ "$status" == "$expected" ]]; then
+    echo -e "${GREEN}SUCCESS: '$regex' with $* exited with $expected as expected${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: '$regex' with $* exited with $status, expected $expected${NC}"
+    return 1
+  fi
+}
+
+# Function to check that a search's --stats report contains the expected text, e.g. which engine ran;
+# standard input is read from INPUT, if it is set
+run_stats_test() {
+  local regex="$1"
+  local expected="$2"
+  shift 2
+
+  java REcompile $COMPILE_OPTS "$regex" >"$FSM_FILE" 2>/dev/null
+  output=$(java REsearch --fsm "$FSM_FILE" --stats "$@" <"${INPUT:-/dev/null}" 2>&1 >/dev/null)
+
+  if [[ "$output" == *"$expected"* ]]; then
+    echo -e "${GREEN}SUCCESS: '$regex' with $* reported '$expected' as expected${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: '$regex' with $* did not report '$expected'${NC}"
+    echo -e "${RED}Got:      $output${NC}"
+    return 1
+  fi
+}
+
+# Function to check that a search with a bad option value exits with 1 and the expected message
+# first, before the usage
+run_error_test() {
+  local regex="$1"
+  local expected="$2"
+  shift 2
+
+  java REcompile $COMPILE_OPTS "$regex" >"$FSM_FILE" 2>/dev/null
+  output=$(java REsearch --fsm "$FSM_FILE" "$@" 2>&1)
+  status=$?
+
+  if [[ "$status" == 1 && "${output%%$'\n'*}" == "$expected" ]]; then
+    echo -e "${GREEN}SUCCESS: '$regex' with $* was refused as expected${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: '$regex' with $* exited with $status${NC}"
+    echo -e "${RED}Expected: $expected${NC}"
+    echo -e "${RED}Got:      $output${NC}"
+    return 1
+  fi
+}
+
+# Function to compile and search with a huge regexp, written to PATTERNS_FILE by the caller since
+# one command line argument can't be over 128 KB. it runs on a small Java stack, so a parser or
+# search that recurses as deep as the regexp fails, and under a time limit, so one that is
+# quadratic in its size fails too
+run_huge_test() {
+  local name="$1"
+  local expected="$2"
+  shift 2
+
+  timeout 60 java -Xss256k REcompile -f "$PATTERNS_FILE" >"$FSM_FILE" 2>/dev/null
+  output=$(timeout 60 java -Xss256k REsearch --fsm "$FSM_FILE" "$@" 2>&1)
+
+  if [[ "$output" == "$expected" ]]; then
+    echo -e "${GREEN}SUCCESS: $name with $* printed what was expected${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: $name with $*${NC}"
+    echo -e "${RED}Expected: $expected${NC}"
+    echo -e "${RED}Got:      ${output:0:200}${NC}"
+    return 1
+  fi
+}
+
+# Function to run a search option test on several patterns compiled into one FSM; the patterns
+# are given one per line and compiled with REcompile -f
+run_set_test() {
+  local patterns="$1"
+  local expected="$2"
+  shift 2
+
+  echo "$patterns" >"$PATTERNS_FILE"
+  java REcompile $COMPILE_OPTS -f "$PATTERNS_FILE" >"$FSM_FILE" 2>/dev/null
+  output=$(java REsearch --fsm "$FSM_FILE" "$@" 2>&1)
+
+  if [[ "$output" == "$expected" ]]; then
+    echo -e "${GREEN}SUCCESS: patterns '${patterns//$'\n'/' '}' with $* printed what was expected${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: patterns '${patterns//$'\n'/' '}' with $*${NC}"
+    echo -e "${RED}Expected: $expected${NC}"
+    echo -e "${RED}Got:      $output${NC}"
+    return 1
+  fi
+}
+
+# Function to check that searching a compressed file prints what searching the plain one does
+run_compressed_test() {
+  local regex="$1"
+  local compressed="$2"
+  local plain="$3"
+  shift 3
+
+  java REcompile $COMPILE_OPTS "$regex" >"$FSM_FILE" 2>/dev/null
+  expected=$(java REsearch --fsm "$FSM_FILE" "$@" "$plain" 2>&1)
+  output=$(java REsearch --fsm "$FSM_FILE" "$@" "$compressed" 2>&1)
+
+  if [[ "$output" == "$expected" ]]; then
+    echo -e "${GREEN}SUCCESS: '$regex' on $compressed with ${*:-no options} printed what the plain file did${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: '$regex' on $compressed with ${*:-no options} differs from the plain file${NC}"
+    return 1
+  fi
+}
+
+# Function to run a search through REclient, against the REserver started on SERVER_PORT
+SERVER_PORT=7979
+run_client_test() {
+  local regex="$1"
+  local expected="$2"
+  shift 2
+
+  output=$(java REclient --port "$SERVER_PORT" "$@" 2>&1)
+
+  if [[ "$output" == "$expected" ]]; then
+    echo -e "${GREEN}SUCCESS: REclient '$regex' with $* printed what was expected${NC}"
+    return 0
+  else
+    echo -e "${RED}FAILURE: REclient '$regex' with $*${NC}"
+    echo -e "${RED}Expected: $expected${NC}"
+    echo -e "${RED}Got:      $output${NC}"
+    return 1
+  fi
+}
+
+# Function to run one search option test and count the result; TEST is the function that runs it
+check() {
+  if ${TEST:-run_output_test} "$@"; then
+    passed=$((passed + 1))
+  else
+    failed=$((failed + 1))
+  fi
+  total=$((total + 1))
+}
+
+# Search option tests: a regex, the expected output, then the options and files
+FSM_FILE="test_fsm.txt"
+UTF8_FILE="test_utf8.txt"
+MODES_FILE="test_modes.txt"
+INDEX_FILE="test_index.refi"
+LAZY_FILE="test_lazy.txt"
+SET_FILE="test_set.txt"
+PATTERNS_FILE="test_patterns.txt"
+GZ_FILE="test_modes.gz"
+MULTI_GZ="test_multi.gz"
+BIG_FILE="test_big.txt"
+BIG_GZ="test_big.gz"
+ZST_FILE="test_modes.zst"
+CRLF_FILE="test_crlf.txt"
+printf 'a\xc3\xa9b\nabb\nac b\nzzz\n' >"$UTF8_FILE"
+printf 'hugged\nhuged\nzzz\nhugggged\n' >"$MODES_FILE"
+
+printf 'zzz\na\xc3\xa9b\nabb\n' >"$LIBRARY_TEXT"
+cat >"$LIBRARY_TEST" <<'END'
+import java.io.*;
+import java.nio.file.*;
+
+public class LibraryTest {
+  public static void main(String[] args) throws IOException {
+    CompiledPattern p = new Compiler().compile(args[0]);
+    byte[] text = Files.readAllBytes(Paths.get(args[1]));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long n = p.scan(new ByteArrayInputStream(text), out);
+    System.out.println(p.find(text, 0, text.length) + " " + n);
+    System.out.print(out.toString("UTF-8"));
+  }
+}
+END
+
+echo -e "\n===== RUNNING SEARCH OPTION TESTS ====="
+
+# byte mode must print the same lines as the decoding reader, even with a wildcard over a multi-byte character
+check "a.b" $'a\xc3\xa9b\nabb' "$UTF8_FILE"
+check "a.b" $'a\xc3\xa9b\nabb' --mmap "$UTF8_FILE"
+check "ab" "abb" --mmap "$UTF8_FILE"
+check "a(b|c)b" "abb" --mmap "$UTF8_FILE"
+# the same for a prebuilt DFA, whose wildcard class takes non-ASCII characters
+COMPILE_OPTS=--dfa check "a.b" $'a\xc3\xa9b\nabb' --mmap "$UTF8_FILE"
+COMPILE_OPTS=--dfa check "a(b|c)b" "abb" --mmap "$UTF8_FILE"
+# -j must print the same lines as a single thread, including under a wildcard
+check "a.b" $'a\xc3\xa9b\nabb' -j 2 "$UTF8_FILE"
+TEST=run_parallel_test check "a.b" "$UTF8_FILE"
+TEST=run_parallel_test check $'(a|\xc3\xa9)b' "$UTF8_FILE"
+check "b" $'a\xc3\xa9b\nabb\nac b' -j 2 "$UTF8_FILE"
+COMPILE_OPTS=--dfa check "a.b" $'a\xc3\xa9b\nabb' -j 2 "$UTF8_FILE"
+# the library's byte entry points must treat UTF-8 the same way
+TEST=run_library_test check "a.b" $'4 2\na\xc3\xa9b\nabb'
+TEST=run_library_test check "ab" $'9 1\nabb'
+TEST=run_library_test check $'\xc3\xa9' $'4 1\na\xc3\xa9b'
+# piped text must give the same lines as the file, whether it is searched as bytes or decoded
+TEST=run_stdin_test check "a.b" $'a\xc3\xa9b\nabb' "$UTF8_FILE"
+TEST=run_stdin_test check "ab" "abb" "$UTF8_FILE"
+TEST=run_stdin_test check "b" $'a\xc3\xa9b\nabb\nac b' "$UTF8_FILE"
+COMPILE_OPTS=--dfa TEST=run_stdin_test check "a.b" $'a\xc3\xa9b\nabb' "$UTF8_FILE"
+# the binary format must read back as the same FSM, or the same prebuilt DFA, as the text one
+COMPILE_OPTS=--binary check "a.b" $'a\xc3\xa9b\nabb' "$UTF8_FILE"
+COMPILE_OPTS=--binary check "(a|c) ?b" $'abb\nac b' "$UTF8_FILE"
+COMPILE_OPTS=--binary check $'\xc3\xa9' $'a\xc3\xa9b' "$UTF8_FILE"
+COMPILE_OPTS="--binary --no-optimise" check "a.b" $'a\xc3\xa9b\nabb' "$UTF8_FILE"
+COMPILE_OPTS="--binary --dfa" check "a.b" $'a\xc3\xa9b\nabb' "$UTF8_FILE"
+COMPILE_OPTS="--binary --dfa" check "a.b" $'a\xc3\xa9b\nabb' --mmap "$UTF8_FILE"
+COMPILE_OPTS=--binary TEST=run_stdin_test check "a.b" $'a\xc3\xa9b\nabb' "$UTF8_FILE"
+
+# more than 64 positions, too many for the bit-parallel engine, so the lazy DFA runs: with the
+# default cache, with none (flushing at every new state until it gives up and hands over to the
+# NFA), and as the NFA alone with --nfa. (a|b)*a then 33 more of a or b: an a with 33 a's or
+# b's after it, which needs a DFA state for each arrangement of the last 34
+ab33=$(printf '(a|b)%.0s' $(seq 33))
+b20=$(printf 'b%.0s' $(seq 20))
+LAZY_REGEX="(a|b)*a$ab33"
+LAZY_MATCHES=$'a'"$b20"$'bbbbbbbbbbbbb\nabababababababababababababababababababababababababababababab\ncccccccccc bbbbb aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa'
+{
+  echo "a${b20}bbbbbbbbbbbbb"
+  echo "${b20}${b20}"
+  echo "a${b20}bbbbbbbbbbbb"
+  echo "abababababababababababababababababababababababababababababab"
+  echo "xa${b20}x${b20}"
+  echo "cccccccccc bbbbb aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"
+} >"$LAZY_FILE"
+check "$LAZY_REGEX" "$LAZY_MATCHES" "$LAZY_FILE"
+check "$LAZY_REGEX" "$LAZY_MATCHES" --dfa-cache 0 "$LAZY_FILE"
+check "$LAZY_REGEX" "$LAZY_MATCHES" --dfa-cache 0 --mmap "$LAZY_FILE"
+check "$LAZY_REGEX" "$LAZY_MATCHES" --nfa "$LAZY_FILE"
+TEST=run_stdin_test check "$LAZY_REGEX" "$LAZY_MATCHES" "$LAZY_FILE" --dfa-cache 0
+TEST=run_stats_test check "$LAZY_REGEX" "engine:              lazydfa" "$LAZY_FILE"
+TEST=run_stats_test check "$LAZY_REGEX" "flushes, gave up" --dfa-cache 0 "$LAZY_FILE"
+TEST=run_stats_test check "$LAZY_REGEX" "engine:              nfa" --nfa "$LAZY_FILE"
+COMPILE_OPTS=--binary check "$LAZY_REGEX" "$LAZY_MATCHES" "$LAZY_FILE"
+
+# several patterns in one FSM: plain literals are found with Aho-Corasick, the rest with an engine
+# over what is left, and each matching line starts with the numbers of the patterns that matched
+printf 'the cat sat\nthe dog hugged the cat\nnothing\nhuged a dig\ncats and dogs\nzzz\n' >"$SET_FILE"
+SET_MATCHES=$'1:the cat sat\n1,2,3:the dog hugged the cat\n2,3:huged a dig\n1,3:cats and dogs'
+TEST=run_set_test check $'cat\ndog' $'1:the cat sat\n1,2:the dog hugged the cat\n1,2:cats and dogs' "$SET_FILE"
+TEST=run_set_test check $'cat\nhug+ed\nd(o|i)g' "$SET_MATCHES" "$SET_FILE"
+TEST=run_set_test check $'cat\nhug+ed\nd(o|i)g' "$SET_MATCHES" --mmap "$SET_FILE"
+TEST=run_set_test check $'cat\nhug+ed\nd(o|i)g' "$SET_MATCHES" -j 2 "$SET_FILE"
+TEST=run_set_test check $'cat\nhug+ed\nd(o|i)g' "$SET_MATCHES" --nfa "$SET_FILE"
+TEST=run_set_test check $'hug+ed\nd(o|i)g' $'1,2:the dog hugged the cat\n1,2:huged a dig\n2:cats and dogs' "$SET_FILE"
+TEST=run_set_test check $'zzz\nsat' $'2:the cat sat\n1:zzz' "$SET_FILE"
+TEST=run_set_test check $'cat\nhug+ed\nd(o|i)g' "4" -c "$SET_FILE"
+COMPILE_OPTS=--binary TEST=run_set_test check $'cat\nhug+ed\nd(o|i)g' "$SET_MATCHES" "$SET_FILE"
+TEST=run_set_test check $'cat\nhug+ed' $'test_set.txt:1:the cat sat\ntest_set.txt:1,2:the dog hugged the cat\ntest_set.txt:2:huged a dig\ntest_set.txt:1:cats and dogs\ntest_modes.txt:2:hugged\ntest_modes.txt:2:huged\ntest_modes.txt:2:hugggged' "$SET_FILE" "$MODES_FILE"
+
+# compressed files are recognised by their magic bytes and searched as the text they hold
+gzip -c "$MODES_FILE" >"$GZ_FILE"
+check "hug+ed" $'hugged\nhuged\nhugggged' "$GZ_FILE"
+check "hug+ed" $'hugged\nhuged\nhugggged' -j 2 "$GZ_FILE"
+check "hug+ed" "3" -c "$GZ_FILE"
+TEST=run_stdin_test check "hug+ed" $'hugged\nhuged\nhugggged' "$GZ_FILE"
+# several gzip members one after the other, as gzip -c >> makes, are one text; the last line is
+# split across two members
+gzip -c "$MODES_FILE" >"$MULTI_GZ"
+gzip -c "$UTF8_FILE" >>"$MULTI_GZ"
+printf 'hug' | gzip -c >>"$MULTI_GZ"
+printf 'ged\n' | gzip -c >>"$MULTI_GZ"
+check "hug+ed" $'hugged\nhuged\nhugggged\nhugged' "$MULTI_GZ"
+check "hug+ed" $'hugged\nhuged\nhugggged\nhugged' -j 2 "$MULTI_GZ"
+check "a.b" $'a\xc3\xa9b\nabb' "$MULTI_GZ"
+TEST=run_stdin_test check "hug+ed" "4" "$MULTI_GZ" -c
+# members over a few MB, so that -j decodes them in parts on several threads
+head -c 3000000 /dev/urandom | base64 >"$BIG_FILE"
+rm -f "$BIG_GZ"
+for part in 1 2 3 4; do
+  sed -n "$(( (part - 1) * 10000 + 1 )),$(( part * 10000 ))p" "$BIG_FILE" | gzip -c >>"$BIG_GZ"
+done
+sed -n '40001,$p' "$BIG_FILE" | gzip -c >>"$BIG_GZ"
+TEST=run_compressed_test check "a(b|c)+d" "$BIG_GZ" "$BIG_FILE"
+TEST=run_compressed_test check "a(b|c)+d" "$BIG_GZ" "$BIG_FILE" -j 4
+TEST=run_compressed_test check "a(b|c)+d" "$BIG_GZ" "$BIG_FILE" -c
+TEST=run_compressed_test check "a(b|c)+d" "$BIG_GZ" "$BIG_FILE" -c -j 4
+# zstd is decoded by the zstd command, so this is only checked where it is installed
+if command -v zstd >/dev/null 2>&1; then
+  zstd -q -c "$MODES_FILE" >"$ZST_FILE"
+  check "hug+ed" $'hugged\nhuged\nhugggged' "$ZST_FILE"
+  TEST=run_stdin_test check "hug+ed" $'hugged\nhuged\nhugggged' "$ZST_FILE"
+else
+  echo -e "SKIPPED: zstd is not installed, so .zst files are not checked"
+fi
+
+# --codegen searches with a class generated from the pattern's DFA, and with the plain pattern when
+# the DFA is too big to build or would make too much code
+check "hug+ed" $'hugged\nhuged\nhugggged' --codegen "$MODES_FILE"
+check "hug+ed" $'hugged\nhuged\nhugggged' --codegen --mmap "$MODES_FILE"
+check "hug+ed" $'hugged\nhuged\nhugggged' --codegen -j 2 "$MODES_FILE"
+TEST=run_stats_test check "hug+ed" "engine:              generated" --codegen "$MODES_FILE"
+check "a.b" $'a\xc3\xa9b\nabb' --codegen "$UTF8_FILE"
+check "a.b" $'a\xc3\xa9b\nabb' --codegen --mmap "$UTF8_FILE"
+COMPILE_OPTS=--dfa check "a.b" $'a\xc3\xa9b\nabb' --codegen "$UTF8_FILE"
+COMPILE_OPTS=--dfa TEST=run_stats_test check "a.b" "engine:              generated" --codegen "$UTF8_FILE"
+# a DFA state for every arrangement of 34 a's and b's is far too many to build
+check "$LAZY_REGEX" "$LAZY_MATCHES" --codegen "$LAZY_FILE"
+TEST=run_stats_test check "$LAZY_REGEX" "engine:              lazydfa" --codegen "$LAZY_FILE"
+# a small DFA, but every state can restart any of the 26 words, which is too many branches
+NATO="(alpha|bravo|charlie|delta|echo|foxtrot|golf|hotel|india|juliet|kilo|lima|mike|november|oscar|papa|quebec|romeo|sierra|tango|uniform|victor|whiskey|xray|yankee|zulu)"
+printf 'the hotel\nnothing\nzulu time\n' >"$TEMP_FILE"
+check "$NATO" $'the hotel\nzulu time' --codegen "$TEMP_FILE"
+TEST=run_stats_test check "$NATO" "engine:              lazydfa" --codegen "$TEMP_FILE"
+# which patterns matched can't be told from a DFA, so a set is searched as before
+TEST=run_set_test check $'cat\nhug+ed\nd(o|i)g' "$SET_MATCHES" --codegen "$SET_FILE"
+
+# --stats counts the bytes read, not the characters they decode to: 11 bytes of UTF-8 and CRLF ends
+printf 'a\xc3\xa9b\r\nabb\r\n' >"$CRLF_FILE"
+TEST=run_stats_test check "a.b" "scanned:             11 bytes, 2 lines" "$CRLF_FILE"
+TEST=run_stats_test check "ab" "scanned:             11 bytes, 2 lines" --mmap "$CRLF_FILE"
+INPUT="$CRLF_FILE" TEST=run_stats_test check "a.b" "scanned:             11 bytes, 2 lines"
+INPUT="$CRLF_FILE" TEST=run_stats_test check "ab" "scanned:             11 bytes, 2 lines"
+
+# huge regexps are parsed with a stack on the heap, not the Java stack, in time linear in their size
+printf 'zzz\nxx a yy\nx w4242 y\n' >"$TEMP_FILE"
+{ printf '(%.0s' $(seq 100000); printf 'a'; printf ')%.0s' $(seq 100000); echo; } >"$PATTERNS_FILE"
+TEST=run_huge_test check "100000 levels of nesting" "xx a yy" "$TEMP_FILE"
+# (((a)*)*...)* matches the empty string, so every line
+{ printf '(%.0s' $(seq 100000); printf 'a'; printf ')*%.0s' $(seq 100000); echo; } >"$PATTERNS_FILE"
+TEST=run_huge_test check "100000 nested closures" $'zzz\nxx a yy\nx w4242 y' "$TEMP_FILE"
+echo "($(seq -f 'w%g' 0 99999 | paste -sd'|'))" >"$PATTERNS_FILE"
+TEST=run_huge_test check "a 100000-way alternation" "x w4242 y" "$TEMP_FILE"
+# only compiled and set up: searching text that matches far into it is slow for any engine
+printf 'ab%.0s' $(seq 500000) >"$PATTERNS_FILE"
+echo >>"$PATTERNS_FILE"
+TEST=run_huge_test check "a 1000000-character concatenation" "0" -c "$TEMP_FILE"
+
+# -c, -l, -q and -m: counts, file names, the exit status alone, and stopping early
+check "hug+ed" "3" -c "$MODES_FILE"
+check "hug+ed" "3" -c --mmap "$MODES_FILE"
+check "hug+ed" "$MODES_FILE" -l "$MODES_FILE"
+check "hug+ed" $'hugged\nhuged' -m 2 "$MODES_FILE"
+check "hug+ed" $'hugged\nhuged' -m 2 --mmap "$MODES_FILE"
+check "hug+ed" "2" -c -m 2 "$MODES_FILE"
+check "hug+ed" "" -q "$MODES_FILE"
+check "hug+ed" $'test_modes.txt:3\ntest_utf8.txt:0' -c "$MODES_FILE" "$UTF8_FILE"
+check "hug+ed" "$MODES_FILE" -l "$MODES_FILE" "$UTF8_FILE"
+TEST=run_stdin_test check "hug+ed" "(standard input)" "$MODES_FILE" -l
+TEST=run_stdin_test check "hug+ed" "hugged" "$MODES_FILE" -m 1
+# a followed file never ends, so it only stops once -m is satisfied
+check "hug+ed" $'hugged\nhuged' -m 2 --follow "$MODES_FILE"
+# -q says whether anything matched in the exit status
+TEST=run_status_test check "hug+ed" "0" -q "$MODES_FILE"
+TEST=run_status_test check "zzzz" "1" -q "$MODES_FILE"
+TEST=run_status_test check "hug+ed" "0" -q "$UTF8_FILE" "$MODES_FILE"
+
+# option values that aren't numbers, or are out of range, are refused with a message
+TEST=run_error_test check "hug+ed" "Error: -j takes a number of threads of at least 1, or auto, not abc" -j abc "$MODES_FILE"
+TEST=run_error_test check "hug+ed" "Error: -j takes a number of threads of at least 1, or auto, not 0" -j 0 "$MODES_FILE"
+TEST=run_error_test check "hug+ed" "Error: --dfa-cache takes a number of MB of at least 0, not x" --dfa-cache x "$MODES_FILE"
+TEST=run_error_test check "hug+ed" "Error: --dfa-cache takes a number of MB of at least 0, not -1" --dfa-cache -1 "$MODES_FILE"
+TEST=run_error_test check "hug+ed" "Error: -m takes a number of lines, not x" -m x "$MODES_FILE"
+# a negative -m is no limit, as in grep
+check "hug+ed" $'hugged\nhuged\nhugggged' -m -1 "$MODES_FILE"
+check "hug+ed" "3" -c -m -1 "$MODES_FILE"
+check "hug+ed" "" -m 0 "$MODES_FILE"
+
+# REclient passes the options on, with their values, to a running REserver
+java REserver --port "$SERVER_PORT" >/dev/null 2>&1 &
+SERVER_PID=$!
+for i in $(seq 50); do
+  java REclient --port "$SERVER_PORT" zzz "$MODES_FILE" >/dev/null 2>&1 && break
+  sleep 0.2
+done
+TEST=run_client_test check "hug+ed" $'hugged\nhuged\nhugggged' "hug+ed" "$MODES_FILE"
+TEST=run_client_test check "hug+ed" "hugged" -m 1 "hug+ed" "$MODES_FILE"
+TEST=run_client_test check "hug+ed" "3" -c "hug+ed" "$MODES_FILE"
+TEST=run_client_test check "hug+ed" "2" -c -m 2 "hug+ed" "$MODES_FILE"
+# bad option values and regexps are reported by the search, not by dropping the connection
+USAGE=$(java REsearch 2>&1)
+TEST=run_client_test check "hug+ed" "Error: -j takes a number of threads of at least 1, or auto, not abc"$'\n'"$USAGE" -j abc "hug+ed" "$MODES_FILE"
+TEST=run_client_test check "hug+ed" "Error: -m takes a number of lines, not x"$'\n'"$USAGE" -m x "hug+ed" "$MODES_FILE"
+TEST=run_client_test check "hug)ed" "Error: Unmatched parentheses or extra input at pos 3" "hug)ed" "$MODES_FILE"
+# the index file is passed on with the rest; with no path, every indexed file is searched
+java REindex "$INDEX_FILE" "$MODES_FILE" >/dev/null 2>&1
+TEST=run_client_test check "hug+ed" $'hugged\nhuged\nhugggged' --index "$INDEX_FILE" "hug+ed" "$MODES_FILE"
+TEST=run_client_test check "hug+ed" "3" -c --index "$INDEX_FILE" "hug+ed"
+kill "$SERVER_PID" 2>/dev/null
+wait "$SERVER_PID" 2>/dev/null
+
 # Clean up temporary files
-rm -f "$TEMP_FILE" "$OUTPUT_FILE"
+rm -f "$TEMP_FILE" "$OUTPUT_FILE" "$FSM_FILE" "$UTF8_FILE" "$LIBRARY_TEST" "$LIBRARY_TEXT" "$MODES_FILE" "$INDEX_FILE" "$LAZY_FILE" "$SET_FILE" "$PATTERNS_FILE" \
+  "$GZ_FILE" "$MULTI_GZ" "$BIG_FILE" "$BIG_GZ" "$ZST_FILE" "$CRLF_FILE"
 
 # Print summary
 echo -e "\n=============================="
@@ -0,0 +1,59 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.*;
+
+/**
+ * VectorStartFinder.java
+ *
+ * StartBytes.Finder with the Vector API: each vector of bytes is compared with every start byte
+ * and with the newline at once, so runs of lines with nothing a match could start with pass at
+ * a vector per step. it is kept apart from the other sources because jdk.incubator.vector has
+ * to be added to compile and run it; StartBytes loads it by name and uses a table without it.
+ *
+ *     javac --add-modules jdk.incubator.vector -cp . -d . simd/VectorStartFinder.java
+ *     java --add-modules jdk.incubator.vector REsearch ...
+ */
+final class VectorStartFinder implements StartBytes.Finder {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    private final byte[] bytes;
+    private long newlines;
+
+    public VectorStartFinder(byte[] bytes) {
+        if (bytes.length == 0 || SPECIES.length() > Long.SIZE) throw new IllegalArgumentException("no vector finder");
+        this.bytes = bytes.clone();
+    }
+
+    @Override
+    public int find(ByteBuffer buf, int from, int to) {
+        int i = from;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (; i < bound; i += SPECIES.length()) {
+            ByteVector v = ByteVector.fromByteBuffer(SPECIES, buf, i, ByteOrder.nativeOrder());
+            VectorMask<Byte> hit = v.eq(bytes[0]);
+            for (int k = 1; k < bytes.length; k++) hit = hit.or(v.eq(bytes[k]));
+            VectorMask<Byte> newline = v.eq((byte) '\n');
+            if (hit.anyTrue()) {
+                // only the newlines before the start byte have been passed
+                int at = hit.firstTrue();
+                newlines += Long.bitCount(newline.toLong() & ((1L << at) - 1));
+                return i + at;
+            }
+            newlines += newline.trueCount();
+        }
+        // what is left is less than a vector
+        for (; i < to; i++) {
+            byte b = buf.get(i);
+            for (byte s : bytes) {
+                if (b == s) return i;
+            }
+            if (b == '\n') newlines++;
+        }
+        return -1;
+    }
+
+    @Override
+    public long newlines() {
+        return newlines;
+    }
+}